@@ -0,0 +1,42 @@
+import ripple.bench.LoginWorkload;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AccountLoginWorkload implements LoginWorkload {
+
+    private ServerFixture server;
+    private int userCount;
+    private final AtomicInteger nextSignup = new AtomicInteger();
+
+    @Override
+    public void setUp(int userCount) throws IOException {
+        BenchmarkSupport.silenceConsole();
+        this.userCount = userCount;
+        this.server = new ServerFixture(userCount);
+    }
+
+    @Override
+    public Object login() throws ServerBusyException {
+        int i = ThreadLocalRandom.current().nextInt(userCount);
+        return server.accountService.login("user" + i, "pw" + i);
+    }
+
+    @Override
+    public Object loginWrongPassword() throws ServerBusyException {
+        int i = ThreadLocalRandom.current().nextInt(userCount);
+        return server.accountService.login("user" + i, "wrong");
+    }
+
+    @Override
+    public void signup() throws IOException {
+        int i = nextSignup.getAndIncrement();
+        server.accountService.createUser("signup" + i, "pw" + i);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
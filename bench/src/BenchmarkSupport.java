@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ Shared setup for the benchmarks: fake sessions, synthetic file names and temp directories.
+ */
+final class BenchmarkSupport {
+
+    private static final String[] EXTENSIONS = {".mp3", ".mp4", ".txt", ".pdf", ".jpg", ".zip", ".java"};
+
+    private BenchmarkSupport() {
+    }
+
+    // The server logs every command, keep that from swamping the benchmark output
+    static void silenceConsole() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    static PrintWriter nullWriter() {
+        return new PrintWriter(OutputStream.nullOutputStream(), false);
+    }
+
+    static ClientHandler newSession(ServerFixture server, String username, int port) {
+        ClientHandler handler = new ClientHandler(new Socket(), server.fileRegistry, server.activePeers,
+                server.accountService, server.activeHandlers, server.metrics);
+        handler.bindSession(new RegularUser(username, ""), new PeerInfo(username, "10.0.0.1:" + port));
+        return handler;
+    }
+
+    /**
+     "unique": every share is a different file.
+     "zipf": names are drawn from a catalog with a Zipf(1) popularity curve,
+     so a few popular files are shared by many peers like in a real network.
+     */
+    static NameSource nameSource(String distribution, int catalogSize, long seed) {
+        Random random = new Random(seed);
+        switch (distribution) {
+            case "unique": {
+                int[] next = {0};
+                return () -> fileName(next[0]++);
+            }
+            case "zipf": {
+                double[] cumulative = new double[catalogSize];
+                double sum = 0;
+                for (int i = 0; i < catalogSize; i++) {
+                    sum += 1.0 / (i + 1);
+                    cumulative[i] = sum;
+                }
+                final double total = sum;
+                return () -> {
+                    double target = random.nextDouble() * total;
+                    int index = java.util.Arrays.binarySearch(cumulative, target);
+                    return fileName(index >= 0 ? index : -index - 1);
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown name distribution: " + distribution);
+        }
+    }
+
+    static String fileName(int index) {
+        return "file_" + index + EXTENSIONS[index % EXTENSIONS.length];
+    }
+
+    // Same name means same contents here, which is what makes zipf shares pool into one entry
+    static String shareArgs(String fileName) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest(fileName.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex + " " + fileName;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Path writeUsersCsv(Path directory, int userCount) throws IOException {
+        PasswordHasher hasher = new CaesarPasswordHasher();
+        List<String> lines = new ArrayList<>(userCount + 1);
+        lines.add("username,passwordHash,downloadStats,uploadStats");
+        for (int i = 0; i < userCount; i++) {
+            lines.add("user" + i + "," + hasher.hashPassword("pw" + i) + "," + i + "," + (i * 1024L) + ",0,0");
+        }
+        Path usersCsv = directory.resolve("users.csv");
+        Files.write(usersCsv, lines);
+        return usersCsv;
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    interface NameSource {
+        String next();
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ Opens many simulated peers against a running Server on this machine and reports per-command
+ throughput and latency. Each peer logs in (signing up the first time), registers, shares a
+ catalog drawn from a Zipf popularity curve and then takes part in a global stream of SEARCH
+ and LIST_PEERS requests. Churn disconnects random peers and brings them back as new sessions.
+
+ Sessions are added in steps so the report shows where latency or errors start to climb:
+   java LoadGenerator sessions=4000 step=500 stepSeconds=30 rate=2000 churn=5
+
+ All options are name=value, see {@link Options} for the defaults.
+ */
+public class LoadGenerator {
+
+    static class Options {
+        String host = "127.0.0.1";
+        int port = 9090;
+        int sessions = 1000;
+        int step = 250;
+        int stepSeconds = 20;
+        double rate = 500;          // SEARCH + LIST_PEERS per second, across all sessions
+        double searchRatio = 0.8;
+        double churn = 2;           // sessions replaced per second
+        int catalogSize = 20000;
+        int filesPerPeer = 40;
+        int connectThreads = 32;
+        long timeoutMs = 15000;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                String[] pair = arg.split("=", 2);
+                if (pair.length != 2) throw new IllegalArgumentException("Expected name=value, got: " + arg);
+                String value = pair[1];
+                switch (pair[0]) {
+                    case "host": options.host = value; break;
+                    case "port": options.port = Integer.parseInt(value); break;
+                    case "sessions": options.sessions = Integer.parseInt(value); break;
+                    case "step": options.step = Integer.parseInt(value); break;
+                    case "stepSeconds": options.stepSeconds = Integer.parseInt(value); break;
+                    case "rate": options.rate = Double.parseDouble(value); break;
+                    case "searchRatio": options.searchRatio = Double.parseDouble(value); break;
+                    case "churn": options.churn = Double.parseDouble(value); break;
+                    case "catalogSize": options.catalogSize = Integer.parseInt(value); break;
+                    case "filesPerPeer": options.filesPerPeer = Integer.parseInt(value); break;
+                    case "connectThreads": options.connectThreads = Integer.parseInt(value); break;
+                    case "timeoutMs": options.timeoutMs = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown option: " + pair[0]);
+                }
+            }
+            return options;
+        }
+    }
+
+    private static class CommandStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private static class SimulatedPeer {
+        final ServerSession session;
+        final PeerDirectoryMirror directory;
+
+        SimulatedPeer(ServerSession session) {
+            this.session = session;
+            this.directory = new PeerDirectoryMirror(session);
+        }
+    }
+
+    private final Options options;
+    // Every ServerSession logs its feature negotiation, so reports go to the original stdout
+    private final PrintStream console = System.out;
+    private final Map<String, CommandStats> stats = new ConcurrentHashMap<>();
+    private final List<SimulatedPeer> live = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextPeerId = new AtomicInteger();
+    // SHARE has no reply, so it is only counted
+    private final LongAdder sharesSent = new LongAdder();
+    private volatile long stepStartedAt;
+    private final BenchmarkSupport.NameSource catalog;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private double owedRequests;
+    private double owedChurn;
+
+    LoadGenerator(Options options) {
+        this.options = options;
+        this.catalog = BenchmarkSupport.nameSource("zipf", options.catalogSize, 7);
+        this.workers = Executors.newFixedThreadPool(options.connectThreads);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        if (!options.host.equals("127.0.0.1") && !options.host.equals("localhost")) {
+            throw new IllegalArgumentException("The load generator only targets a local server");
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        BenchmarkSupport.silenceConsole();
+        generator.run();
+    }
+
+    void run() throws InterruptedException {
+        console.printf("Load against %s:%d, up to %d sessions in steps of %d, %.0f req/s, churn %.1f/s%n",
+                options.host, options.port, options.sessions, options.step, options.rate, options.churn);
+
+        scheduler.scheduleAtFixedRate(this::tick, 10, 10, TimeUnit.MILLISECONDS);
+
+        int target = 0;
+        while (target < options.sessions) {
+            target = Math.min(options.sessions, target + options.step);
+            reset();
+            List<CompletableFuture<Void>> connecting = new ArrayList<>();
+            while (live.size() + connecting.size() < target) {
+                connecting.add(CompletableFuture.runAsync(this::connectPeer, workers));
+            }
+            CompletableFuture.allOf(connecting.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+            Thread.sleep(options.stepSeconds * 1000L);
+            report(target);
+        }
+
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+        for (SimulatedPeer peer : live) {
+            disconnect(peer);
+        }
+    }
+
+    private void connectPeer() {
+        int id = nextPeerId.getAndIncrement();
+        String username = "load" + id;
+        String password = "pw" + id;
+        ServerSession session = null;
+        try {
+            long start = System.nanoTime();
+            Transport transport = new TCPTransport(options.host, options.port);
+            record("CONNECT", start, false);
+
+            session = new ServerSession(transport);
+            session.setUnsolicitedListener(line -> { });
+
+            // A fresh user is expected to fail the first login, that is not a server error
+            String reply = timed("LOGIN", session, "LOGIN " + username + " " + password, "LOGIN_FAIL Invalid");
+            if (reply.startsWith("LOGIN_FAIL Invalid")) {
+                timed("SIGNUP", session, "SIGNUP " + username + " " + password, null);
+                reply = timed("LOGIN", session, "LOGIN " + username + " " + password, null);
+            }
+            if (!reply.startsWith("LOGIN_SUCCESS")) {
+                session.close();
+                return;
+            }
+
+            session.send("REGISTER " + (20000 + id % 40000));
+            for (int f = 0; f < options.filesPerPeer; f++) {
+                String fileName;
+                synchronized (catalog) {
+                    fileName = catalog.next();
+                }
+                session.send("SHARE " + BenchmarkSupport.shareArgs(fileName));
+                sharesSent.increment();
+            }
+            live.add(new SimulatedPeer(session));
+        } catch (IOException e) {
+            stats.computeIfAbsent(session == null ? "CONNECT" : "LOGIN", k -> new CommandStats()).errors.increment();
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private String timed(String command, ServerSession session, String line, String expectedFailure) throws IOException {
+        long start = System.nanoTime();
+        try {
+            String reply = session.requestLine(line);
+            boolean failed = reply.startsWith("ERROR") || reply.contains("_FAIL");
+            record(command, start, failed && (expectedFailure == null || !reply.startsWith(expectedFailure)));
+            return reply;
+        } catch (IOException e) {
+            record(command, start, true);
+            throw e;
+        }
+    }
+
+    private void record(String command, long startNanos, boolean failed) {
+        CommandStats commandStats = stats.computeIfAbsent(command, k -> new CommandStats());
+        commandStats.latency.record(System.nanoTime() - startNanos);
+        if (failed) {
+            commandStats.errors.increment();
+        }
+    }
+
+    // Runs every 10ms and spreads the configured request and churn rates over the ticks
+    private void tick() {
+        // Nothing to send on an empty network, don't let the debt pile up into a burst
+        owedRequests = Math.min(options.rate, owedRequests + options.rate / 100.0);
+        owedChurn = Math.min(options.churn + 1, owedChurn + options.churn / 100.0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        while (owedRequests >= 1 && !live.isEmpty()) {
+            owedRequests--;
+            SimulatedPeer peer = live.get(random.nextInt(live.size()));
+            if (random.nextDouble() < options.searchRatio) {
+                search(peer, random);
+            } else {
+                workers.execute(() -> listPeers(peer));
+            }
+        }
+
+        while (owedChurn >= 1 && !live.isEmpty()) {
+            owedChurn--;
+            SimulatedPeer peer = live.remove(random.nextInt(live.size()));
+            workers.execute(() -> {
+                disconnect(peer);
+                connectPeer();
+            });
+        }
+    }
+
+    private void search(SimulatedPeer peer, ThreadLocalRandom random) {
+        // Short prefixes of popular names, like a user typing part of a title
+        String term = "file_" + random.nextInt(100);
+        long start = System.nanoTime();
+        peer.session.request("SEARCH " + term)
+                .orTimeout(options.timeoutMs, TimeUnit.MILLISECONDS)
+                .whenComplete((reply, error) -> record("SEARCH", start, error != null || reply.startsWith("ERROR")));
+    }
+
+    private void listPeers(SimulatedPeer peer) {
+        long start = System.nanoTime();
+        try {
+            peer.directory.refresh();
+            record("LIST_PEERS", start, false);
+        } catch (IOException e) {
+            record("LIST_PEERS", start, true);
+        }
+    }
+
+    private void disconnect(SimulatedPeer peer) {
+        try {
+            peer.session.send("UNREGISTER");
+            peer.session.close();
+        } catch (IOException ignored) {
+            // Already gone
+        }
+    }
+
+    private void reset() {
+        stats.clear();
+        sharesSent.reset();
+        stepStartedAt = System.nanoTime();
+    }
+
+    // The step covers ramping up to the target and then holding it for stepSeconds
+    private void report(int target) {
+        double seconds = (System.nanoTime() - stepStartedAt) / 1e9;
+        console.printf("%n== %d sessions (%d live) over %.1fs, %d shares sent ==%n",
+                target, live.size(), seconds, sharesSent.sum());
+        console.printf("%-12s %9s %7s %10s %8s %8s %8s %8s %9s%n",
+                "command", "count", "errors", "ops/s", "mean", "p50", "p90", "p99", "max(us)");
+        Map<String, CommandStats> sorted = new LinkedHashMap<>();
+        stats.keySet().stream().sorted().forEach(k -> sorted.put(k, stats.get(k)));
+        for (Map.Entry<String, CommandStats> entry : sorted.entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            console.printf("%-12s %9d %7d %10.1f %8d %8d %8d %8d %9d%n",
+                    entry.getKey(),
+                    latency.getCount(),
+                    entry.getValue().errors.sum(),
+                    latency.getCount() / seconds,
+                    latency.getMeanMicros(),
+                    latency.getPercentileMicros(50),
+                    latency.getPercentileMicros(90),
+                    latency.getPercentileMicros(99),
+                    latency.getMaxMicros());
+        }
+    }
+}
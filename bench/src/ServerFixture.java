@@ -0,0 +1,38 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ The same shared state Server wires into every ClientHandler, backed by a temp directory.
+ */
+class ServerFixture implements AutoCloseable {
+
+    final Path directory;
+    final Map<String, FileEntry> fileRegistry = Collections.synchronizedMap(new LinkedHashMap<>());
+    final PeerDirectory activePeers = new PeerDirectory();
+    final Map<String, ClientHandler> activeHandlers = new ConcurrentHashMap<>();
+    final AccountService accountService;
+    final ServerMetrics metrics;
+
+    ServerFixture() throws IOException {
+        this(0);
+    }
+
+    ServerFixture(int userCount) throws IOException {
+        this.directory = Files.createTempDirectory("ripple-bench");
+        Path usersCsv = userCount > 0
+                ? BenchmarkSupport.writeUsersCsv(directory, userCount)
+                : directory.resolve("users.csv");
+        this.accountService = new AccountService(usersCsv.toString());
+        this.metrics = new ServerMetrics(fileRegistry, activePeers, activeHandlers, accountService, null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+}
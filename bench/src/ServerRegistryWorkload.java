@@ -0,0 +1,74 @@
+import ripple.bench.RegistryWorkload;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ServerRegistryWorkload implements RegistryWorkload {
+
+    // Mix of selective terms and ones that match a large part of the registry
+    private static final String[] SEARCH_TERMS = {"file_1", "file_42.", "file_99", ".mp3", "_7", "nothing-matches"};
+
+    private ServerFixture server;
+    private final List<ClientHandler> sessions = new ArrayList<>();
+    private String[] shareArgs;
+    private int filesPerPeer;
+    private PrintWriter sink;
+    private ClientHandler departingPeer;
+    private int nextPort = 20000;
+
+    @Override
+    public void setUp(int registrySize, String nameDistribution, int filesPerPeer) throws IOException {
+        BenchmarkSupport.silenceConsole();
+        this.server = new ServerFixture();
+        this.filesPerPeer = filesPerPeer;
+        this.sink = BenchmarkSupport.nullWriter();
+
+        BenchmarkSupport.NameSource names = BenchmarkSupport.nameSource(nameDistribution, registrySize, 42);
+        List<String> allShares = new ArrayList<>(registrySize);
+        int peerCount = Math.max(1, registrySize / filesPerPeer);
+        for (int p = 0; p < peerCount; p++) {
+            ClientHandler session = BenchmarkSupport.newSession(server, "peer" + p, nextPort++);
+            for (int f = 0; f < filesPerPeer; f++) {
+                String args = BenchmarkSupport.shareArgs(names.next());
+                session.handleShare(args);
+                allShares.add(args);
+            }
+            sessions.add(session);
+        }
+        shareArgs = allShares.toArray(new String[0]);
+    }
+
+    @Override
+    public void share() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        sessions.get(random.nextInt(sessions.size())).handleShare(shareArgs[random.nextInt(shareArgs.length)]);
+    }
+
+    @Override
+    public void search() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        sessions.get(random.nextInt(sessions.size())).handleSearch(SEARCH_TERMS[random.nextInt(SEARCH_TERMS.length)], sink);
+    }
+
+    @Override
+    public void connectDepartingPeer() {
+        departingPeer = BenchmarkSupport.newSession(server, "leaver", nextPort++);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int f = 0; f < filesPerPeer; f++) {
+            departingPeer.handleShare(shareArgs[random.nextInt(shareArgs.length)]);
+        }
+    }
+
+    @Override
+    public void unregisterDepartingPeer() {
+        departingPeer.unregisterPeer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
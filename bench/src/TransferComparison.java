@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ Sends one large file over loopback with each upload path in PeerClient.DownloadHandler and prints
+ throughput and the sending thread's CPU time (user and system):
+   stream   - 8 KB heap buffer, InputStream to Socket OutputStream (the old loop)
+   transfer - FileChannel.transferTo into the SocketChannel (sendfile on Linux)
+ The receiver drains into a direct buffer and is the same for both.
+
+   java TransferComparison sizeMb=4096 runs=3 file=/tmp/ripple-transfer.bin
+
+ The file is created once and kept, so later runs read it from the page cache like a hot shared file.
+ */
+public class TransferComparison {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    interface Sender {
+        long send(Path file, int port) throws IOException;
+    }
+
+    static class Result {
+        long bytes;
+        long wallNanos;
+        long cpuNanos;
+        long userNanos;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long sizeMb = 2048;
+        int runs = 3;
+        Path file = Paths.get(System.getProperty("java.io.tmpdir"), "ripple-transfer.bin");
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) throw new IllegalArgumentException("Expected name=value, got: " + arg);
+            switch (pair[0]) {
+                case "sizeMb": sizeMb = Long.parseLong(pair[1]); break;
+                case "runs": runs = Integer.parseInt(pair[1]); break;
+                case "file": file = Paths.get(pair[1]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + pair[0]);
+            }
+        }
+        prepare(file, sizeMb * 1024 * 1024);
+
+        System.out.printf("%-9s %4s %10s %10s %10s %10s %12s%n", "method", "run", "MB/s", "cpu ms", "user ms", "sys ms", "cpu ms/GB");
+        for (int run = 1; run <= runs; run++) {
+            report("stream", run, measure(file, TransferComparison::sendStream));
+            report("transfer", run, measure(file, TransferComparison::sendTransfer));
+        }
+    }
+
+    private static void prepare(Path file, long size) throws IOException {
+        if (Files.exists(file) && Files.size(file) == size) return;
+        System.out.println("Writing " + size / (1024 * 1024) + " MB test file " + file);
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; written += block.length) {
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written));
+                while (buffer.hasRemaining()) out.write(buffer);
+            }
+        }
+    }
+
+    // Sender runs on the calling thread so its CPU time can be read; the receiver drains on its own thread
+    private static Result measure(Path file, Sender sender) throws Exception {
+        // Free port for the sender to listen on, released before the sender binds it
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        AtomicLong received = new AtomicLong();
+        Thread receiver = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                    int read;
+                    while ((read = channel.read(buffer)) != -1) {
+                        received.addAndGet(read);
+                        buffer.clear();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Receiver failed: " + e.getMessage());
+            }
+        }, "receiver");
+        receiver.start();
+
+        Result result = new Result();
+        long cpuStart = THREADS.getCurrentThreadCpuTime();
+        long userStart = THREADS.getCurrentThreadUserTime();
+        result.bytes = sender.send(file, port);
+        result.cpuNanos = THREADS.getCurrentThreadCpuTime() - cpuStart;
+        result.userNanos = THREADS.getCurrentThreadUserTime() - userStart;
+        receiver.join();
+        result.wallNanos = SEND_ELAPSED.get();
+        if (received.get() != result.bytes) {
+            throw new IllegalStateException("Sent " + result.bytes + " bytes but received " + received.get());
+        }
+        return result;
+    }
+
+    // Wall time from accept to the last byte handed to the socket, set by the senders
+    private static final AtomicLong SEND_ELAPSED = new AtomicLong();
+
+    private static long sendStream(Path file, int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port); Socket socket = server.accept();
+             InputStream in = Files.newInputStream(file); OutputStream out = socket.getOutputStream()) {
+            long start = System.nanoTime();
+            long sent = FileSender.sendStream(in, out, bytes -> { });
+            out.flush();
+            SEND_ELAPSED.set(System.nanoTime() - start);
+            return sent;
+        }
+    }
+
+    private static long sendTransfer(Path file, int port) throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            try (SocketChannel socket = server.accept(); FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                long start = System.nanoTime();
+                long sent = FileSender.sendChannel(in, 0, in.size(), socket, bytes -> { });
+                SEND_ELAPSED.set(System.nanoTime() - start);
+                return sent;
+            }
+        }
+    }
+
+    private static void report(String method, int run, Result result) {
+        double mb = result.bytes / (1024.0 * 1024.0);
+        double seconds = result.wallNanos / 1e9;
+        double cpuMs = result.cpuNanos / 1e6;
+        double userMs = result.userNanos / 1e6;
+        System.out.printf("%-9s %4d %10.0f %10.0f %10.0f %10.0f %12.0f%n", method, run, mb / seconds,
+                cpuMs, userMs, cpuMs - userMs, cpuMs / (mb / 1024));
+    }
+}
@@ -0,0 +1,69 @@
+package ripple.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ Logins from many threads at once, alone and while another thread keeps creating accounts.
+ The mixed group shows whether a slow users.csv rewrite holds up logins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentLoginBenchmark {
+
+    @Param({"10000"})
+    int userCount;
+
+    LoginWorkload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.load("AccountLoginWorkload", LoginWorkload.class);
+        workload.setUp(userCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.close();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object login() throws Exception {
+        return workload.login();
+    }
+
+    @Benchmark
+    @Group("withSignups")
+    @GroupThreads(7)
+    public Object loginWhileSigningUp() throws Exception {
+        return workload.login();
+    }
+
+    @Benchmark
+    @Group("withSignups")
+    @GroupThreads(1)
+    public void signup() throws Exception {
+        workload.signup();
+    }
+}
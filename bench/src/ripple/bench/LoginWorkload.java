@@ -0,0 +1,22 @@
+package ripple.bench;
+
+import java.io.IOException;
+
+/**
+ AccountService.login against a users.csv of a given size, see {@link RegistryWorkload} for why this is an interface.
+ */
+public interface LoginWorkload extends AutoCloseable {
+
+    void setUp(int userCount) throws Exception;
+
+    Object login() throws Exception;
+
+    Object loginWrongPassword() throws Exception;
+
+    // Creates a new account, which rewrites the user store
+    void signup() throws Exception;
+
+    // Narrowed from AutoCloseable, cleanup only deletes files and never waits on anything interruptible
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,75 @@
+package ripple.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ ClientHandler.handleShare, handleSearch and unregisterPeer.
+ registrySize is the number of (peer, file) shares loaded before measuring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistryBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int registrySize;
+
+    @Param({"unique", "zipf"})
+    String nameDistribution;
+
+    @Param({"50"})
+    int filesPerPeer;
+
+    RegistryWorkload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.load("ServerRegistryWorkload", RegistryWorkload.class);
+        workload.setUp(registrySize, nameDistribution, filesPerPeer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.close();
+    }
+
+    @Benchmark
+    public void share() {
+        workload.share();
+    }
+
+    @Benchmark
+    public void search() {
+        workload.search();
+    }
+
+    @State(Scope.Thread)
+    public static class DepartingPeer {
+        @Setup(Level.Invocation)
+        public void connect(RegistryBenchmark benchmark) {
+            benchmark.workload.connectDepartingPeer();
+        }
+    }
+
+    @Benchmark
+    public void unregisterPeer(DepartingPeer peer) {
+        workload.unregisterDepartingPeer();
+    }
+}
@@ -0,0 +1,26 @@
+package ripple.bench;
+
+import java.io.IOException;
+
+/**
+ Registry operations the benchmarks drive. The server sources live in the default package,
+ which JMH benchmark classes cannot import, so the implementation sits next to them and is
+ loaded by name through {@link Workloads}.
+ */
+public interface RegistryWorkload extends AutoCloseable {
+
+    void setUp(int registrySize, String nameDistribution, int filesPerPeer) throws Exception;
+
+    void share();
+
+    void search();
+
+    // Registers a fresh peer with its files so that the next unregister has something to remove
+    void connectDepartingPeer();
+
+    void unregisterDepartingPeer();
+
+    // Narrowed from AutoCloseable, cleanup only deletes files and never waits on anything interruptible
+    @Override
+    void close() throws IOException;
+}
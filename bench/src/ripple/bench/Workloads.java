@@ -0,0 +1,15 @@
+package ripple.bench;
+
+final class Workloads {
+
+    private Workloads() {
+    }
+
+    static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not load workload " + className, e);
+        }
+    }
+}
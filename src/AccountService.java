@@ -7,11 +7,33 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class AccountService {
+public class AccountService implements AutoCloseable {
     private final Path userCsvPath;
     private final PasswordHasher passwordHasher;
     private final UserRepository userRepository;
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final StatsWriteBehind statsWriter;
+    private final PersistenceQueue persistence = new PersistenceQueue(writeLatency);
+    private final PasswordHashingService hashing;
+    // Mutations of the same username are serialized, different users proceed in parallel
+    private final Object[] userLocks = new Object[64];
+    private final ThroughputStore throughputStore;
+    private final Leaderboard topUploaders = new Leaderboard();
+    private final Leaderboard topDownloaders = new Leaderboard();
+    private final AtomicBoolean reseedScheduled = new AtomicBoolean();
+    // Opened on the first account removal, only ever used from the persistence thread
+    private ClientConfigurationService clientConfig;
+    private final ScheduledExecutorService throughputCheckpoints = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "throughput-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public AccountService(String userCsvPath) {
         this(userCsvPath, new CaesarPasswordHasher());
@@ -20,11 +42,45 @@ public class AccountService {
     public AccountService(String userCsvPath, PasswordHasher passwordHasher) {
         this.userCsvPath = Paths.get(userCsvPath);
         this.passwordHasher = passwordHasher;
-        this.userRepository = new CsvUserRepository(this.userCsvPath, passwordHasher);
+        this.hashing = new PasswordHashingService(passwordHasher);
+        this.userRepository = createRepository(this.userCsvPath, passwordHasher);
+        for (int i = 0; i < userLocks.length; i++) {
+            userLocks[i] = new Object();
+        }
         initialize();
+        this.statsWriter = new StatsWriteBehind(this::flushStats);
+        this.throughputStore = new ThroughputStore(this.userCsvPath);
+        boolean indexed = userRepository instanceof IndexedUserRepository;
+        throughputStore.load(userRepository.getUsers(), indexed);
+        seedLeaderboards(topUploaders, topDownloaders);
+        if (indexed) {
+            ((IndexedUserRepository) userRepository).setResidencyListener(throughputStore);
+        }
+        throughputCheckpoints.scheduleWithFixedDelay(this::checkpointThroughput, 5, 5, TimeUnit.MINUTES);
     }
 
-
+    // -Dripple.userStore=log keeps users.csv as a checkpoint and appends changes to users.log
+    // -Dripple.userStore=indexed reads users on demand from users.dat/users.idx (built once from users.csv)
+    // -Dripple.statsStore=mapped moves stats into the memory-mapped user_stats.bin
+    private static UserRepository createRepository(Path userCsvPath, PasswordHasher passwordHasher) {
+        UserRepository repository;
+        String userStore = System.getProperty("ripple.userStore", "csv");
+        if ("indexed".equalsIgnoreCase(userStore)) {
+            if ("mapped".equalsIgnoreCase(System.getProperty("ripple.statsStore", "csv"))) {
+                System.out.println("Note: ripple.statsStore=mapped is ignored, the indexed store keeps stats in its own records");
+            }
+            return new IndexedUserRepository(userCsvPath, passwordHasher);
+        }
+        if ("log".equalsIgnoreCase(userStore)) {
+            repository = new LogStructuredUserRepository(userCsvPath, passwordHasher);
+        } else {
+            repository = new CsvUserRepository(userCsvPath, passwordHasher);
+        }
+        if ("mapped".equalsIgnoreCase(System.getProperty("ripple.statsStore", "csv"))) {
+            repository = new MappedStatsRepository(repository, userCsvPath);
+        }
+        return repository;
+    }
 
     private void initialize() {
         try {
@@ -41,47 +97,44 @@ public class AccountService {
         }
     }
 
-    public synchronized User createUser(String username, String password) throws IOException {
-        userRepository.loadUsers();
-        Map<String, User> users = userRepository.getUsers();
-
-        if (users.containsKey(username)) {
-            throw new IOException("Username '" + username + "' already exists.");
-        }
+    // users.csv is only read at startup, from then on the repository's map is the source of truth
+    public User createUser(String username, String password) throws IOException {
         if ("admin".equalsIgnoreCase(username)) {
             throw new IOException("The username 'admin' is reserved and cannot be used.");
         }
 
-        String passwordHash = passwordHasher.hashPassword(password);
+        String passwordHash = hashing.hashPassword(password);
         User newUser = new RegularUser(username, passwordHash);
-        users.put(newUser.getUsername(), newUser);
-        userRepository.saveUsers();
+        synchronized (lockFor(username)) {
+            if (!persistence.call(() -> userRepository.addUser(newUser))) {
+                throw new IOException("Username '" + username + "' already exists.");
+            }
+        }
         return newUser;
     }
 
-    public synchronized boolean removeUser(String username) throws IOException {
-        userRepository.loadUsers();
-        Map<String, User> users = userRepository.getUsers();
-
+    public boolean removeUser(String username) throws IOException {
         if ("admin".equalsIgnoreCase(username)) {
             return false;
         }
 
-        if (users.remove(username) != null) {
-            userRepository.saveUsers();
+        synchronized (lockFor(username)) {
+            return persistence.call(() -> removeUserAndConfig(username));
+        }
+    }
+
+    private boolean removeUserAndConfig(String username) throws IOException {
+        if (userRepository.removeUser(username)) {
+            throughputStore.forget(username);
+            topUploaders.remove(username);
+            topDownloaders.remove(username);
+            reseedIfDepleted();
 
             try {
-                Path clientConfigPath = Paths.get("client_config.csv");
-                if (Files.exists(clientConfigPath)) {
-                    List<String> updatedLines = new ArrayList<>();
-                    List<String> allLines = Files.readAllLines(clientConfigPath);
-                    for (String line : allLines) {
-                        // After reading the entire file filter out the removed user's name and overwrite the file with only those who should be there
-                        if (!line.trim().startsWith(username + ",")) {
-                            updatedLines.add(line);
-                        }
-                    }
-                    Files.write(clientConfigPath, updatedLines);
+                if (clientConfig == null) {
+                    clientConfig = new ClientConfigurationService("client_config.csv");
+                }
+                if (clientConfig.removeSharedDirectory(username)) {
                     System.out.println("Removed directory configuration for deleted user: " + username);
                 }
             } catch (IOException e) {
@@ -92,18 +145,134 @@ public class AccountService {
         return false;
     }
 
-    public synchronized User login(String username, String password) {
-        userRepository.loadUsers();
-        Map<String, User> users = userRepository.getUsers();
-        User user = users.get(username);
-        if (user != null && passwordHasher.verifyPassword(password, user.getPasswordHash())) {
+    // Throws ServerBusyException when the hashing pool is saturated rather than queueing the login
+    public User login(String username, String password) throws ServerBusyException {
+        User user = userRepository.findUser(username);
+        if (user != null && hashing.verifyPassword(username, password, user.getPasswordHash())) {
             return user;
         }
         return null;
     }
 
-    public synchronized void saveUserStats(User user) throws IOException {
-        userRepository.saveUserStats(user);
+    public User getUser(String username) {
+        return userRepository.findUser(username);
+    }
+
+    // The stats objects are already updated in memory, this only schedules them for disk
+    public void saveUserStats(User user) {
+        statsWriter.markDirty(user);
+        updateLeaderboards(user);
+    }
+
+    private void updateLeaderboards(User user) {
+        topUploaders.update(user.getUsername(), user.getUploadStats().getTotalBytes());
+        topDownloaders.update(user.getUsername(), user.getDownloadStats().getTotalBytes());
+        reseedIfDepleted();
+    }
+
+    // Every account onto the boards. The indexed store is scanned on disk, where resident users may be
+    // behind, so those are taken from memory instead.
+    private void seedLeaderboards(Leaderboard uploaders, Leaderboard downloaders) {
+        Map<String, User> resident = userRepository.getUsers();
+        if (userRepository instanceof IndexedUserRepository) {
+            ((IndexedUserRepository) userRepository).forEachStats((username, downloadBytes, uploadBytes) -> {
+                if (resident.containsKey(username)) return;
+                uploaders.update(username, uploadBytes);
+                downloaders.update(username, downloadBytes);
+            });
+        }
+        for (User user : resident.values()) {
+            uploaders.update(user.getUsername(), user.getUploadStats().getTotalBytes());
+            downloaders.update(user.getUsername(), user.getDownloadStats().getTotalBytes());
+        }
+    }
+
+    // Lowered totals and deleted accounts use up the boards' spare rows; refill them in the background
+    private void reseedIfDepleted() {
+        if (!topUploaders.depleted() && !topDownloaders.depleted()) return;
+        if (!reseedScheduled.compareAndSet(false, true)) return;
+        try {
+            throughputCheckpoints.execute(() -> {
+                try {
+                    Leaderboard uploaders = new Leaderboard();
+                    Leaderboard downloaders = new Leaderboard();
+                    seedLeaderboards(uploaders, downloaders);
+                    topUploaders.replaceWith(uploaders);
+                    topDownloaders.replaceWith(downloaders);
+                } finally {
+                    reseedScheduled.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            reseedScheduled.set(false);
+        }
+    }
+
+    /**
+     name=bytes;... for the k biggest uploaders or downloaders, null for an unknown board
+     */
+    public String getTopUsers(String board, int k) {
+        if ("uploaders".equalsIgnoreCase(board)) return topUploaders.format(k);
+        if ("downloaders".equalsIgnoreCase(board)) return topDownloaders.format(k);
+        return null;
+    }
+
+    private void flushStats(List<User> dirty) throws IOException {
+        List<User> batch = new ArrayList<>(dirty.size());
+        for (User user : dirty) {
+            // Skips accounts deleted (or deleted and signed up again) since the update. A password change
+            // replaces the User but keeps its stats objects. A dirty user is still referenced, so even the
+            // indexed store answers this from memory.
+            User current = userRepository.findUser(user.getUsername());
+            if (current != null && current.getDownloadStats() == user.getDownloadStats()) batch.add(current);
+        }
+        if (batch.isEmpty()) return;
+        persistence.call(() -> {
+            userRepository.saveUserStats(batch);
+            return null;
+        });
+    }
+
+    public void flushStats() throws IOException {
+        statsWriter.flush();
+    }
+
+    public String getStatsWriteSummary() {
+        return statsWriter.summary();
+    }
+
+    @Override
+    public void close() throws IOException {
+        statsWriter.close();
+        throughputCheckpoints.shutdown();
+        checkpointThroughput();
+        persistence.close();
+        hashing.close();
+        userRepository.close();
+        // Only touched on the persistence thread, which has finished by now
+        if (clientConfig != null) {
+            clientConfig.close();
+        }
+    }
+
+    private void checkpointThroughput() {
+        try {
+            persistence.call(() -> {
+                throughputStore.save(userRepository.getUsers());
+                return null;
+            });
+        } catch (IOException e) {
+            System.err.println("Warning: Could not save throughput history: " + e.getMessage());
+        }
+    }
+
+    private Object lockFor(String username) {
+        return userLocks[(username.hashCode() & 0x7fffffff) % userLocks.length];
+    }
+
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
     }
 
     public boolean isOnlyAdmin(String username) {
@@ -121,26 +290,35 @@ public class AccountService {
     }
 
     public boolean changePassword(String username, String newPassword) throws IOException {
-        Map<String, User> users = userRepository.getUsers();
-        User user = users.get(username);
-        if (user == null) {
-            return false;
-        }
+        String newHashedPassword = hashing.hashPassword(newPassword);
+        synchronized (lockFor(username)) {
+            // Looked up under the lock so a concurrent delete cannot be undone by the update
+            User user = userRepository.findUser(username);
+            if (user == null) {
+                return false;
+            }
 
-        String newHashedPassword = passwordHasher.hashPassword(newPassword);
-        User updatedUser;
-        if (user.isAdmin()) {
-            updatedUser = new AdminUser(newHashedPassword, user.getDownloadStats(), user.getUploadStats());
-        } else {
-            updatedUser = new RegularUser(username, newHashedPassword, user.getDownloadStats(), user.getUploadStats());
-        }
+            User updatedUser;
+            if (user.isAdmin()) {
+                updatedUser = new AdminUser(newHashedPassword, user.getDownloadStats(), user.getUploadStats());
+            } else {
+                updatedUser = new RegularUser(username, newHashedPassword, user.getDownloadStats(), user.getUploadStats());
+            }
 
-        users.put(username, updatedUser);
-        userRepository.saveUsers();
+            persistence.call(() -> {
+                userRepository.updateUser(updatedUser);
+                return null;
+            });
+            hashing.invalidate(username);
+        }
         return true;
     }
 
-    boolean verifyPassword(String password, String storedHash) {
-        return passwordHasher.verifyPassword(password, storedHash);
+    boolean verifyPassword(String username, String password, String storedHash) throws ServerBusyException {
+        return hashing.verifyPassword(username, password, storedHash);
+    }
+
+    public String getHashingSummary() {
+        return hashing.summary();
     }
 }
\ No newline at end of file
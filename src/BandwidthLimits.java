@@ -0,0 +1,88 @@
+/**
+ Upload and download rate limits for this peer, in bytes per second with 0 for unlimited. Each
+ direction has a global token bucket shared by all its transfers and a limit for every single
+ connection, whose buckets hang below the global one. Limits can be changed at any time and take
+ effect on running transfers within their next step.
+
+ The server connection is never limited, so searches and other requests stay responsive while
+ transfers run at their limits.
+ */
+public class BandwidthLimits {
+
+    private volatile long uploadLimit;
+    private volatile long downloadLimit;
+    private volatile long uploadConnectionLimit;
+    private volatile long downloadConnectionLimit;
+
+    private final TokenBucket upload = new TokenBucket(null, () -> uploadLimit);
+    private final TokenBucket download = new TokenBucket(null, () -> downloadLimit);
+
+    /**
+     Limits from the ripple.uploadLimit, ripple.downloadLimit, ripple.uploadConnectionLimit and
+     ripple.downloadConnectionLimit system properties, in KB/s
+     */
+    public static BandwidthLimits fromSystemProperties() {
+        BandwidthLimits limits = new BandwidthLimits();
+        limits.setUploadLimit(Long.getLong("ripple.uploadLimit", 0) * 1024);
+        limits.setDownloadLimit(Long.getLong("ripple.downloadLimit", 0) * 1024);
+        limits.setUploadConnectionLimit(Long.getLong("ripple.uploadConnectionLimit", 0) * 1024);
+        limits.setDownloadConnectionLimit(Long.getLong("ripple.downloadConnectionLimit", 0) * 1024);
+        return limits;
+    }
+
+    /**
+     A bucket for one upload connection
+     */
+    TokenBucket uploadConnection() {
+        return new TokenBucket(upload, () -> uploadConnectionLimit);
+    }
+
+    /**
+     A bucket for one download connection
+     */
+    TokenBucket downloadConnection() {
+        return new TokenBucket(download, () -> downloadConnectionLimit);
+    }
+
+    public long getUploadLimit() {
+        return uploadLimit;
+    }
+
+    public long getDownloadLimit() {
+        return downloadLimit;
+    }
+
+    public long getUploadConnectionLimit() {
+        return uploadConnectionLimit;
+    }
+
+    public long getDownloadConnectionLimit() {
+        return downloadConnectionLimit;
+    }
+
+    public void setUploadLimit(long bytesPerSecond) {
+        uploadLimit = Math.max(0, bytesPerSecond);
+    }
+
+    public void setDownloadLimit(long bytesPerSecond) {
+        downloadLimit = Math.max(0, bytesPerSecond);
+    }
+
+    public void setUploadConnectionLimit(long bytesPerSecond) {
+        uploadConnectionLimit = Math.max(0, bytesPerSecond);
+    }
+
+    public void setDownloadConnectionLimit(long bytesPerSecond) {
+        downloadConnectionLimit = Math.max(0, bytesPerSecond);
+    }
+
+    @Override
+    public String toString() {
+        return "upload " + describe(uploadLimit) + " (" + describe(uploadConnectionLimit) + " per connection), download "
+                + describe(downloadLimit) + " (" + describe(downloadConnectionLimit) + " per connection)";
+    }
+
+    private static String describe(long bytesPerSecond) {
+        return bytesPerSecond == 0 ? "unlimited" : bytesPerSecond / 1024 + " KB/s";
+    }
+}
@@ -1,21 +1,52 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ Downloads into name.part next to a name.part.meta sidecar (PartialDownload) holding the size and
+ SHA-256 the peer announced. A later download of the same name asks the peer for the range after the
+ bytes already on disk; if the peer's file has changed since, the partial file is thrown away and the
+ download starts over. When the peer sends piece hashes every piece is checked as it arrives, the
+ sidecar records the verified ones, and pieces that fail are fetched again on their own. The finished
+ file is checked against the whole-file hash before it is renamed into place.
+ */
 public class ChunkedDownload implements DownloadStrategy {
 
+    static final int MAX_PIECE_ATTEMPTS = 3;
+
     private final int chunkSize;
     private final FileHandler fileHandler;
     private final Path downloadDirectory;
+    private final ThroughputSeries throughput;
+    private final BandwidthLimits bandwidth;
 
     public ChunkedDownload(int chunkSize, FileHandler fileHandler, Path downloadDirectory) {
+        this(chunkSize, fileHandler, downloadDirectory, null);
+    }
+
+    public ChunkedDownload(int chunkSize, FileHandler fileHandler, Path downloadDirectory, ThroughputSeries throughput) {
+        this(chunkSize, fileHandler, downloadDirectory, throughput, new BandwidthLimits());
+    }
+
+    public ChunkedDownload(int chunkSize, FileHandler fileHandler, Path downloadDirectory, ThroughputSeries throughput,
+                           BandwidthLimits bandwidth) {
         this.chunkSize = chunkSize;
         this.fileHandler = fileHandler;
         this.downloadDirectory = downloadDirectory;
+        this.throughput = throughput;
+        this.bandwidth = bandwidth;
     }
 
     @Override
@@ -35,32 +66,252 @@ public class ChunkedDownload implements DownloadStrategy {
             throw new IOException("Could not parse peer address: " + peerAddress, e);
         }
 
+        Path destinationPath = downloadDirectory.resolve(fileName);
+        Path partPath = PartialDownload.partPath(destinationPath);
+        Path metaPath = PartialDownload.metaPath(destinationPath);
+
+        PieceHashes pieces = requestPieces(host, port, fileName);
+        PartialDownload state = PartialDownload.read(metaPath);
+        long offset = 0;
+        if (state != null && Files.exists(partPath)) {
+            offset = state.contiguousLength(Files.size(partPath));
+            if (pieces != null) {
+                // Verification starts at a piece boundary
+                offset -= offset % pieces.pieceSize;
+            }
+        }
+        if (offset == 0) {
+            state = null;
+        }
+
+        boolean restart;
+        try (Socket peerSocket = new Socket(host, port)) {
+            InputStream in = new BufferedInputStream(peerSocket.getInputStream(), chunkSize);
+            Range range = requestRange(peerSocket, in, fileName, offset, -1);
+            if (range == null) {
+                // A peer from before ranges existed: take the whole file the old way
+                downloadWhole(host, port, fileName, partPath, metaPath, destinationPath);
+                return;
+            }
+
+            // A changed file is started over once this connection is closed
+            restart = state != null && !state.matches(range.size, range.hash);
+            if (!restart) {
+                if (pieces != null && pieces.size != range.size) {
+                    System.err.println("Warning: Piece hashes for " + fileName + " are out of date, pieces are not verified");
+                    pieces = null;
+                }
+                // With piece hashes the sidecar records verified pieces, without them everything up to the .part length
+                if (state == null) {
+                    Files.deleteIfExists(partPath);
+                    state = new PartialDownload(range.size, range.hash, pieces != null);
+                } else if (pieces != null) {
+                    state = state.segmented(offset);
+                }
+                state.write(metaPath);
+
+                System.out.println(offset > 0 ? "Resuming download at byte " + offset + " of " + range.size + "..." : "Downloading...");
+                List<long[]> corrupt = new ArrayList<>();
+                try (FileChannel file = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    receive(in, file, range, pieces, state, metaPath, corrupt);
+                    System.out.println("Download stream finished.");
+                    refetch(host, port, fileName, file, pieces, state, metaPath, corrupt);
+                } finally {
+                    state.write(metaPath);
+                }
+            }
+        }
+        if (restart) {
+            System.out.println("The peer's copy of " + fileName + " has changed, restarting the download.");
+            Files.deleteIfExists(partPath);
+            Files.deleteIfExists(metaPath);
+            download(peerAddress, fileName);
+            return;
+        }
+
+        if (Files.size(partPath) != state.size || !LocalFileHandler.sha256Hex(partPath).equals(state.hash)) {
+            Files.deleteIfExists(partPath);
+            Files.deleteIfExists(metaPath);
+            throw new IOException("Downloaded " + fileName + " does not match the peer's size and hash, discarded it");
+        }
+        Files.move(partPath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(metaPath);
+    }
+
+    // Writes range at its offset; verified pieces are marked in state, ones that fail go to corrupt
+    private void receive(InputStream in, FileChannel file, Range range, PieceHashes pieces, PartialDownload state,
+                         Path metaPath, List<long[]> corrupt) throws IOException {
+        PieceHashes.Verifier verifier = pieces == null ? null : new PieceHashes.Verifier(pieces, pieces.pieceSize, range.size, range.start);
+        PieceHashes.PieceListener listener = (start, end, valid) -> {
+            if (valid) {
+                state.markDone(start, end);
+                state.checkpoint(metaPath);
+            } else {
+                corrupt.add(new long[]{start, end});
+            }
+        };
+        TokenBucket bucket = bandwidth.downloadConnection();
+        byte[] buffer = new byte[chunkSize];
+        long received = 0;
+        while (received < range.length) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(bucket.quantum(buffer.length), range.length - received));
+            if (bytesRead == -1) {
+                // Leave the .part and its sidecar so the next attempt resumes from here
+                throw new IOException("Connection closed after " + (range.start + received) + " of " + range.size
+                        + " bytes, the download can be resumed");
+            }
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+            long position = range.start + received;
+            while (data.hasRemaining()) {
+                position += file.write(data, position);
+            }
+            if (verifier != null) {
+                verifier.update(buffer, 0, bytesRead, listener);
+            }
+            received += bytesRead;
+            if (throughput != null) {
+                throughput.record(bytesRead);
+            }
+            bucket.consume(bytesRead);
+        }
+    }
+
+    // Fetches each corrupt piece again on its own connection, giving up after MAX_PIECE_ATTEMPTS rounds
+    private void refetch(String host, int port, String fileName, FileChannel file, PieceHashes pieces,
+                         PartialDownload state, Path metaPath, List<long[]> corrupt) throws IOException {
+        for (int attempt = 1; !corrupt.isEmpty(); attempt++) {
+            if (attempt > MAX_PIECE_ATTEMPTS) {
+                throw new IOException(corrupt.size() + " piece(s) of " + fileName + " kept failing verification");
+            }
+            List<long[]> retry = new ArrayList<>(corrupt);
+            corrupt.clear();
+            for (long[] piece : retry) {
+                System.out.println("Piece at byte " + piece[0] + " of " + fileName + " failed verification, fetching it again.");
+                try (Socket socket = new Socket(host, port)) {
+                    InputStream in = new BufferedInputStream(socket.getInputStream(), chunkSize);
+                    Range again = requestRange(socket, in, fileName, piece[0], piece[1] - piece[0]);
+                    if (again == null || again.start != piece[0] || again.length != piece[1] - piece[0]
+                            || !state.matches(again.size, again.hash)) {
+                        throw new IOException("Peer no longer serves the same " + fileName);
+                    }
+                    receive(in, file, again, pieces, state, metaPath, corrupt);
+                }
+            }
+        }
+    }
+
+    private static PieceHashes requestPieces(String host, int port, String fileName) {
+        try (Socket socket = new Socket(host, port)) {
+            return PieceHashes.request(socket, fileName);
+        } catch (IOException e) {
+            System.err.println("Warning: No piece hashes for " + fileName + ", pieces are not verified: " + e.getMessage());
+            return null;
+        }
+    }
+
+    static class Range {
+        final long start;
+        final long length;
+        final long size;
+        final String hash;
+
+        Range(long start, long length, long size, String hash) {
+            this.start = start;
+            this.length = length;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     Sends DOWNLOAD_RANGE and reads the RANGE header, leaving in at the first byte of the range. While
+     the peer's upload slots are taken it sends QUEUED <position> lines, which are waited out; BUSY
+     means its queue is full too. Null when the peer predates ranges.
+     */
+    static Range requestRange(Socket socket, InputStream in, String fileName, long offset, long length) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("DOWNLOAD_RANGE " + offset + " " + length + " " + fileName + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        String header = readLine(in);
+        String lastPosition = null;
+        while (header != null && header.startsWith("QUEUED ")) {
+            String position = header.substring(7);
+            if (!position.equals(lastPosition)) {
+                System.out.println("Waiting for an upload slot at " + socket.getInetAddress().getHostAddress()
+                        + ", position " + position + " in the peer's queue");
+                lastPosition = position;
+            }
+            header = readLine(in);
+        }
+        if (header == null) {
+            throw new IOException("Peer closed the connection without answering");
+        }
+        if (header.equals("BUSY")) {
+            throw new PeerBusyException("Peer is busy, its upload queue is full");
+        }
+        if (header.startsWith("ERROR Unknown command")) {
+            return null;
+        }
+        if (header.startsWith("ERROR")) {
+            throw new IOException("Peer refused the download: " + header.substring(5).trim());
+        }
+        String[] fields = header.split(" ");
+        Range range;
+        try {
+            if (fields.length != 5 || !fields[0].equals("RANGE")) throw new NumberFormatException();
+            range = new Range(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected reply from peer: " + header);
+        }
+        if (range.start != offset) {
+            throw new IOException("Peer sent a range from " + range.start + " instead of " + offset);
+        }
+        return range;
+    }
+
+    private void downloadWhole(String host, int port, String fileName, Path partPath, Path metaPath,
+                               Path destinationPath) throws IOException {
+        Files.deleteIfExists(metaPath);
+        long totalBytesRead = 0;
         try (
                 Socket peerSocket = new Socket(host, port);
-                Transport transport = new TCPTransport(peerSocket)
+                Transport transport = new TCPTransport(peerSocket);
+                OutputStream fileOut = Files.newOutputStream(partPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
         ) {
             transport.sendLine("DOWNLOAD " + fileName);
+            TokenBucket bucket = bandwidth.downloadConnection();
+            byte[] buffer = new byte[chunkSize];
+            int bytesRead;
 
-            Path destinationPath = downloadDirectory.resolve(fileName);
-            long totalBytesRead = 0;
-
-            try (OutputStream fileOut = Files.newOutputStream(destinationPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-                byte[] buffer = new byte[chunkSize];
-                int bytesRead;
-
-                System.out.println("Downloading...");
-                while ((bytesRead = transport.readBytes(buffer)) != -1) {
-                    fileOut.write(buffer, 0, bytesRead);
-                    totalBytesRead += bytesRead;
+            System.out.println("Downloading...");
+            while ((bytesRead = transport.readBytes(buffer)) != -1) {
+                fileOut.write(buffer, 0, bytesRead);
+                totalBytesRead += bytesRead;
+                if (throughput != null) {
+                    throughput.record(bytesRead);
                 }
-                System.out.println("Download stream finished.");
+                bucket.consume(bytesRead);
             }
+            System.out.println("Download stream finished.");
+        }
+        if (totalBytesRead == 0) {
+            System.out.println("Warning: Received an empty file or peer did not send data.");
+        }
+        Files.move(partPath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
+    }
 
-            if (totalBytesRead == 0 && Files.exists(destinationPath)) {
-                if (Files.size(destinationPath) == 0) {
-                    System.out.println("Warning: Received an empty file or peer did not send data.");
-                }
+    // The header line in front of the range, read byte by byte so nothing after it is buffered away
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() >= 4096) {
+                throw new IOException("Reply line from peer is too long");
             }
+            line.write(b);
         }
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString(StandardCharsets.UTF_8.name()).trim();
     }
 }
\ No newline at end of file
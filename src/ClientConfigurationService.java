@@ -2,55 +2,59 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
 
-public class ClientConfigurationService {
+/**
+ Per-user shared directories, kept in a KeyValueStore next to the given legacy CSV name
+ (client_config.csv is stored as client_config.kv). An existing CSV is imported once and renamed.
+ */
+public class ClientConfigurationService implements AutoCloseable {
 
-    private final Path configFile;
-    private final Map<String, String> configurations = new ConcurrentHashMap<>();
+    private final KeyValueStore store;
 
     public ClientConfigurationService(String configFileName) {
-        this.configFile = Paths.get(configFileName);
+        Path legacyFile = Paths.get(configFileName);
+        String name = legacyFile.getFileName().toString();
+        String storeName = (name.endsWith(".csv") ? name.substring(0, name.length() - 4) : name) + ".kv";
+        Path storeFile = legacyFile.toAbsolutePath().resolveSibling(storeName);
+
+        KeyValueStore opened = null;
         try {
-            if (Files.exists(configFile)) {
-                loadConfigurations();
+            opened = new KeyValueStore(storeFile);
+            if (!legacyFile.equals(storeFile) && Files.exists(legacyFile)) {
+                int imported = opened.importCsv(legacyFile);
+                Files.move(legacyFile, legacyFile.resolveSibling(name + ".imported"));
+                System.out.println("Imported " + imported + " client configurations from " + name);
             }
         } catch (IOException e) {
             System.err.println("Warning: Could not load client configurations: " + e.getMessage());
         }
-    }
-
-    private void loadConfigurations() throws IOException {
-        List<String> lines = Files.readAllLines(configFile);
-        for (String line : lines) {
-            if (line.trim().isEmpty() || line.startsWith("#")) continue;
-            String[] parts = line.split(",", 2);
-            if (parts.length == 2) {
-                configurations.put(parts[0], parts[1]);
-            }
-        }
+        this.store = opened;
     }
 
     public String getSharedDirectory(String username) {
-        return configurations.get(username);
+        if (store == null) return null;
+        try {
+            return store.get(username);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not read client configuration: " + e.getMessage());
+            return null;
+        }
     }
 
     public void saveSharedDirectory(String username, String sharedDirectory) throws IOException {
-        configurations.put(username, sharedDirectory);
-        rewriteConfigFile();
+        if (store == null) throw new IOException("Client configuration store is not available");
+        store.put(username, sharedDirectory);
     }
 
-    private synchronized void rewriteConfigFile() throws IOException {
-        List<String> lines = new ArrayList<>();
-        for (String key : configurations.keySet()) {
-            String value = configurations.get(key);
-            lines.add(key + "," + value);
-        }
+    /**
+     Returns false if the user had no directory configured.
+     */
+    public boolean removeSharedDirectory(String username) throws IOException {
+        return store != null && store.delete(username);
+    }
 
-        Files.write(configFile, lines);
+    @Override
+    public void close() throws IOException {
+        if (store != null) store.close();
     }
-}
\ No newline at end of file
+}
@@ -3,29 +3,37 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 public class ClientHandler implements Runnable {
     private final Socket socket;
-    private final List<FileEntry> fileRegistry;
-    private final List<PeerInfo> activePeers;
+    private final Map<String, FileEntry> fileRegistry;
+    private final PeerDirectory activePeers;
     private final AccountService accountService;
     private final Map<String, ClientHandler> activeHandlers;
+    private final ServerMetrics metrics;
 
     private PeerInfo peerInfo;
     private User loggedInUser;
+    // Tag of the request currently being handled, echoed back so the client can match the reply
+    private String requestTag;
+    private boolean replyFailed;
+    // Reply encodings the client asked for with FEATURES
+    private boolean compressReplies;
+    private boolean peerTableReplies;
+    // File name -> registry key for everything this peer shares, so cleanup only touches its own entries
+    private final Map<String, String> sharedFiles = new HashMap<>();
 
 
-    public ClientHandler(Socket socket, List<FileEntry> fileRegistry, List<PeerInfo> activePeers, AccountService accountService, Map<String, ClientHandler> activeHandlers) {
+    public ClientHandler(Socket socket, Map<String, FileEntry> fileRegistry, PeerDirectory activePeers, AccountService accountService, Map<String, ClientHandler> activeHandlers, ServerMetrics metrics) {
         this.socket = socket;
         this.fileRegistry = fileRegistry;
         this.activePeers = activePeers;
         this.accountService = accountService;
         this.activeHandlers = activeHandlers;
+        this.metrics = metrics;
     }
 
 
@@ -54,6 +62,7 @@ public class ClientHandler implements Runnable {
     public void run() {
         String clientIdentifier = socket.getRemoteSocketAddress().toString();
         System.out.println("Connected: " + clientIdentifier);
+        metrics.connectionOpened();
 
         try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
              PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
@@ -63,61 +72,95 @@ public class ClientHandler implements Runnable {
                 String userIdentifier = (loggedInUser != null) ? loggedInUser.getUsername() : "unauthenticated " + clientIdentifier;
                 System.out.println("Received from " + userIdentifier + ": " + command);
 
+                requestTag = null;
+                if (command.startsWith("#")) {
+                    int space = command.indexOf(' ');
+                    if (space == -1) continue;
+                    requestTag = command.substring(1, space);
+                    command = command.substring(space + 1);
+                }
+
                 String[] parts = command.split(" ", 3);
                 String action = parts[0].toUpperCase();
 
-                switch (action) {
-                    case "LOGIN":
-                        if (parts.length < 3) continue;
-                        handleLogin(parts[1], parts[2], out);
-                        break;
-                    case "SIGNUP":
-                        if (parts.length < 3) continue;
-                        handleSignup(parts[1], parts[2], out);
-                        break;
-                    case "REGISTER":
-                        if (loggedInUser == null) { out.println("ERROR Not logged in"); continue; }
-                        if (parts.length < 2) continue;
-                        handleRegisterPeer(parts[1]);
-                        break;
-                    case "SHARE":
-                        if (loggedInUser == null || peerInfo == null) { out.println("ERROR Not registered"); continue; }
-                        if (parts.length < 2) continue;
-                        handleShare(parts[1]);
-                        break;
-                    case "SEARCH":
-                        if (loggedInUser == null) { out.println("ERROR Not logged in"); continue; }
-                        if (parts.length < 2) continue;
-                        handleSearch(parts[1], out);
-                        break;
-                    case "LIST_PEERS":
-                        if (loggedInUser == null) { out.println("ERROR Not logged in"); continue; }
-                        handleListPeers(out);
-                        break;
-                    case "UPDATE_STATS":
-                        if (loggedInUser == null) { out.println("ERROR Not logged in"); continue; }
-                        if (parts.length < 3) continue;
-                        handleUpdateStats(parts[1], parts[2]);
-                        break;
-                    case "REMOVE_USER":
-                        if (loggedInUser == null || !loggedInUser.isAdmin()) { out.println("ERROR Not authorized"); continue; }
-                        if (parts.length < 2) continue;
-                        handleRemoveUser(parts[1], out);
-                        break;
-                    case "CHANGE_PASSWORD":
-                        if (loggedInUser == null) { out.println("ERROR Not logged in"); continue; }
-                        if (parts.length < 3) continue;
-                        handleChangePassword(parts[1], parts[2], out);
-                        break;
-                    case "DELETE_ACCOUNT":
-                        if (loggedInUser == null) { out.println("ERROR Not logged in"); continue; }
-                        if (parts.length < 3) continue;
-                        handleDeleteAccount(parts[1], parts[2], out);
-                        break;
-                    case "UNREGISTER":
-                        return;
-                    default:
-                        out.println("ERROR Unknown command");
+                long commandStart = System.nanoTime();
+                replyFailed = false;
+                try {
+                    switch (action) {
+                        case "FEATURES":
+                            handleFeatures(parts.length > 1 ? parts[1] : "", out);
+                            break;
+                        case "LOGIN":
+                            if (parts.length < 3) continue;
+                            handleLogin(parts[1], parts[2], out);
+                            break;
+                        case "SIGNUP":
+                            if (parts.length < 3) continue;
+                            handleSignup(parts[1], parts[2], out);
+                            break;
+                        case "REGISTER":
+                            if (loggedInUser == null) { reply(out, "ERROR Not logged in"); continue; }
+                            if (parts.length < 2) continue;
+                            handleRegisterPeer(parts[1]);
+                            break;
+                        case "SHARE":
+                            if (loggedInUser == null || peerInfo == null) { reply(out, "ERROR Not registered"); continue; }
+                            if (parts.length < 2) continue;
+                            handleShare(command.substring(parts[0].length() + 1));
+                            break;
+                        case "SEARCH":
+                            if (loggedInUser == null) { reply(out, "ERROR Not logged in"); continue; }
+                            if (parts.length < 2) continue;
+                            handleSearch(parts[1], out);
+                            break;
+                        case "METRICS":
+                            if (loggedInUser == null || !loggedInUser.isAdmin()) { reply(out, "ERROR Not authorized"); continue; }
+                            reply(out, "METRICS " + metrics.snapshot());
+                            break;
+                        case "LIST_PEERS":
+                            if (loggedInUser == null) { reply(out, "ERROR Not logged in"); continue; }
+                            handleListPeers(parts.length > 1 ? command.substring(parts[0].length() + 1) : "", out);
+                            break;
+                        case "UPDATE_STATS":
+                            if (loggedInUser == null) { reply(out, "ERROR Not logged in"); continue; }
+                            if (parts.length < 3) continue;
+                            handleUpdateStats(parts[1], parts[2]);
+                            break;
+                        case "TOP":
+                            if (loggedInUser == null || !loggedInUser.isAdmin()) { reply(out, "ERROR Not authorized"); continue; }
+                            handleTop(parts, out);
+                            break;
+                        case "RATES":
+                            if (loggedInUser == null) { reply(out, "ERROR Not logged in"); continue; }
+                            handleRates(parts.length > 1 ? parts[1] : loggedInUser.getUsername(), out);
+                            break;
+                        case "STATS_DELTA":
+                            if (loggedInUser == null) { reply(out, "ERROR Not logged in"); continue; }
+                            if (parts.length < 3) continue;
+                            handleStatsDelta(parts[1], parts[2]);
+                            break;
+                        case "REMOVE_USER":
+                            if (loggedInUser == null || !loggedInUser.isAdmin()) { reply(out, "ERROR Not authorized"); continue; }
+                            if (parts.length < 2) continue;
+                            handleRemoveUser(parts[1], out);
+                            break;
+                        case "CHANGE_PASSWORD":
+                            if (loggedInUser == null) { reply(out, "ERROR Not logged in"); continue; }
+                            if (parts.length < 3) continue;
+                            handleChangePassword(parts[1], parts[2], out);
+                            break;
+                        case "DELETE_ACCOUNT":
+                            if (loggedInUser == null) { reply(out, "ERROR Not logged in"); continue; }
+                            if (parts.length < 3) continue;
+                            handleDeleteAccount(parts[1], parts[2], out);
+                            break;
+                        case "UNREGISTER":
+                            return;
+                        default:
+                            reply(out, "ERROR Unknown command");
+                    }
+                } finally {
+                    metrics.recordCommand(action, System.nanoTime() - commandStart, replyFailed);
                 }
             }
         } catch (IOException e) {
@@ -125,6 +168,7 @@ public class ClientHandler implements Runnable {
             System.err.println("Connection error or forced disconnect for " + clientIdentifier + ": " + e.getMessage());
         } finally {
             //Centralized cleanup logic
+            metrics.connectionClosed();
             if (loggedInUser != null) {
                 activeHandlers.remove(loggedInUser.getUsername());
                 System.out.println("Handler for '" + loggedInUser.getUsername() + "' removed from active map.");
@@ -143,15 +187,63 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    // Lets benchmarks and tools drive the registry paths without a live socket
+    void bindSession(User user, PeerInfo peer) {
+        this.loggedInUser = user;
+        this.peerInfo = peer;
+        activePeers.add(peer);
+    }
+
+    private void reply(PrintWriter out, String line) {
+        replyFailed = replyFailed || line.startsWith("ERROR") || line.contains("_FAIL");
+        if (requestTag == null) {
+            out.println(line);
+            return;
+        }
+        if (compressReplies && line.length() >= ResponseCompression.MIN_COMPRESS_LENGTH) {
+            String compressed = ResponseCompression.deflate(line);
+            if (compressed.length() < line.length()) {
+                out.println("#" + requestTag + "z " + compressed);
+                return;
+            }
+        }
+        out.println("#" + requestTag + " " + line);
+    }
+
+    // Compressed replies need the tag to carry the marker, so only tagged clients can turn them on
+    private void handleFeatures(String requested, PrintWriter out) {
+        StringBuilder accepted = new StringBuilder();
+        for (String feature : requested.split(",")) {
+            feature = feature.trim().toLowerCase();
+            if (feature.equals(ResponseCompression.FEATURE_DEFLATE) && requestTag != null) {
+                compressReplies = true;
+            } else if (feature.equals(ResponseCompression.FEATURE_PEER_TABLE)) {
+                peerTableReplies = true;
+            } else {
+                continue;
+            }
+            if (accepted.length() > 0) accepted.append(",");
+            accepted.append(feature);
+        }
+        reply(out, "FEATURES " + accepted);
+    }
+
     private void handleLogin(String username, String password, PrintWriter out) {
         // A user cna only login from one client at a time
         if (activeHandlers.containsKey(username)) {
-            out.println("LOGIN_FAIL User is already logged in elsewhere.");
+            reply(out, "LOGIN_FAIL User is already logged in elsewhere.");
             System.out.println("Failed login for '" + username + "': Already active.");
             return;
         }
 
-        User user = accountService.login(username, password);
+        User user;
+        try {
+            user = accountService.login(username, password);
+        } catch (ServerBusyException e) {
+            reply(out, "LOGIN_FAIL " + e.getMessage());
+            System.out.println("Turned away login for '" + username + "': password hashing is saturated.");
+            return;
+        }
         if (user != null) {
             this.loggedInUser = user;
 
@@ -163,10 +255,10 @@ public class ClientHandler implements Runnable {
                     user.getDownloadStats().toCsvString(),
                     user.getUploadStats().toCsvString()
             );
-            out.println("LOGIN_SUCCESS " + payload);
+            reply(out, "LOGIN_SUCCESS " + payload);
             System.out.println("User '" + username + "' logged in. Handler is now registered.");
         } else {
-            out.println("LOGIN_FAIL Invalid username or password.");
+            reply(out, "LOGIN_FAIL Invalid username or password.");
             System.out.println("Failed login attempt for user '" + username + "'.");
         }
     }
@@ -185,30 +277,28 @@ public class ClientHandler implements Runnable {
                     System.out.println("User '" + username + "' was not logged in. No active session to disconnect.");
                 }
 
-                out.println("REMOVE_SUCCESS");
+                reply(out, "REMOVE_SUCCESS");
 
             } else {
-                out.println("REMOVE_FAIL Could not remove user. They may not exist or are an admin.");
+                reply(out, "REMOVE_FAIL Could not remove user. They may not exist or are an admin.");
             }
         } catch (IOException e) {
-            out.println("REMOVE_FAIL " + e.getMessage());
+            reply(out, "REMOVE_FAIL " + e.getMessage());
             System.err.println("Error during user removal: " + e.getMessage());
         }
     }
 
-    private void unregisterPeer() {
+    void unregisterPeer() {
         if (peerInfo != null) {
             System.out.println("Unregistering peer: " + peerInfo.address + " ('" + peerInfo.username + "')");
 
-            synchronized (activePeers) {
-                activePeers.remove(peerInfo);
-            }
+            activePeers.remove(peerInfo);
 
             synchronized (fileRegistry) {
-                for (FileEntry entry : fileRegistry) {
-                    entry.removePeer(peerInfo);
+                for (String key : new HashSet<>(sharedFiles.values())) {
+                    removeFromEntry(key);
                 }
-                fileRegistry.removeIf(entry -> entry.peers.isEmpty());
+                sharedFiles.clear();
             }
         }
     }
@@ -217,10 +307,10 @@ public class ClientHandler implements Runnable {
     private void handleSignup(String username, String password, PrintWriter out) {
         try {
             accountService.createUser(username, password);
-            out.println("SIGNUP_SUCCESS");
+            reply(out, "SIGNUP_SUCCESS");
             System.out.println("New user '" + username + "' created.");
         } catch (IOException e) {
-            out.println("SIGNUP_FAIL " + e.getMessage());
+            reply(out, "SIGNUP_FAIL " + e.getMessage());
             System.err.println("Failed signup for user '" + username + "': " + e.getMessage());
         }
     }
@@ -231,122 +321,233 @@ public class ClientHandler implements Runnable {
             loggedInUser.getDownloadStats().fromCsvString(downloadStatsCsv);
             loggedInUser.getUploadStats().fromCsvString(uploadStatsCsv);
             accountService.saveUserStats(loggedInUser);
-        } catch (IOException e) {
+        } catch (NumberFormatException e) {
             System.err.println("Could not update stats for user " + loggedInUser.getUsername() + ": " + e.getMessage());
         }
     }
 
+    // STATS_DELTA df,db uf,ub: what the client transferred since its last report, summed here without locking
+    private void handleStatsDelta(String downloadDeltaCsv, String uploadDeltaCsv) {
+        try {
+            // Both halves are checked first so a bad upload delta cannot leave the download one applied
+            long[] downloadDelta = Stats.parseDelta(downloadDeltaCsv);
+            long[] uploadDelta = Stats.parseDelta(uploadDeltaCsv);
+            loggedInUser.getDownloadStats().addDelta(downloadDelta[0], downloadDelta[1]);
+            loggedInUser.getUploadStats().addDelta(uploadDelta[0], uploadDelta[1]);
+            accountService.saveUserStats(loggedInUser);
+        } catch (NumberFormatException e) {
+            replyFailed = true;
+            System.err.println("Ignoring bad stats delta from " + loggedInUser.getUsername() + ": " + e.getMessage());
+        }
+    }
+
+    // TOP uploaders|downloaders [k] -> TOP uploaders alice=123;bob=45 (total bytes, largest first)
+    private void handleTop(String[] parts, PrintWriter out) {
+        int k = Leaderboard.TOP_SIZE;
+        if (parts.length > 2) {
+            try {
+                k = Math.max(1, Math.min(Leaderboard.CANDIDATES, Integer.parseInt(parts[2])));
+            } catch (NumberFormatException e) {
+                reply(out, "TOP_FAIL Invalid count " + parts[2]);
+                return;
+            }
+        }
+        String board = parts.length > 1 ? parts[1].toLowerCase() : "uploaders";
+        String top = accountService.getTopUsers(board, k);
+        if (top == null) {
+            reply(out, "TOP_FAIL Unknown board " + board + ", use uploaders or downloaders");
+            return;
+        }
+        reply(out, "TOP " + board + " " + top);
+    }
+
+    // RATES [username] -> RATES <username> down=10s:B,1m:B,1h:B,1d:B up=... (bytes per second); other users need admin
+    private void handleRates(String username, PrintWriter out) {
+        if (!username.equals(loggedInUser.getUsername()) && !loggedInUser.isAdmin()) {
+            reply(out, "ERROR Not authorized");
+            return;
+        }
+        User user = accountService.getUser(username);
+        if (user == null) {
+            reply(out, "RATES_FAIL Unknown user " + username);
+            return;
+        }
+        reply(out, "RATES " + username
+                + " down=" + user.getDownloadStats().getThroughput().summary()
+                + " up=" + user.getUploadStats().getThroughput().summary());
+    }
+
     private void handleRegisterPeer(String peerListenPort) {
         int port = Integer.parseInt(peerListenPort);
         String peerAddress = socket.getInetAddress().getHostAddress() + ":" + port;
         this.peerInfo = new PeerInfo(loggedInUser.getUsername(), peerAddress);
-        synchronized (activePeers) {
-            if (!activePeers.contains(this.peerInfo)) {
-                activePeers.add(this.peerInfo);
-                System.out.println("Peer registered: " + peerAddress + " as user '" + loggedInUser.getUsername() + "'");
-            }
+        if (activePeers.add(this.peerInfo)) {
+            System.out.println("Peer registered: " + peerAddress + " as user '" + loggedInUser.getUsername() + "'");
         }
     }
 
-    private void handleShare(String fileName) {
+    // Accepts "SHARE <sha256> <fileName>", or the older "SHARE <fileName>" without a hash
+    void handleShare(String shareArgs) {
         if (peerInfo == null) return;
 
+        String hash = null;
+        String name = shareArgs;
+        int space = shareArgs.indexOf(' ');
+        if (space > 0 && FileEntry.isContentHash(shareArgs.substring(0, space))) {
+            hash = shareArgs.substring(0, space);
+            name = shareArgs.substring(space + 1);
+        }
+        final String contentHash = hash;
+        final String fileName = name;
+        String key = FileEntry.registryKey(contentHash, fileName);
+
         synchronized (fileRegistry) {
-            FileEntry entry = fileRegistry.stream()
-                    .filter(fe -> fe.fileName.equals(fileName))
-                    .findFirst()
-                    .orElseGet(() -> {
-                        FileEntry newEntry = new FileEntry(fileName);
-                        fileRegistry.add(newEntry);
-                        return newEntry;
-                    });
-
-            entry.addPeer(peerInfo);
+            String previousKey = sharedFiles.put(fileName, key);
+            if (previousKey != null && !previousKey.equals(key)) {
+                // The file changed on the peer since it was last shared, drop the stale name
+                FileEntry previous = fileRegistry.get(previousKey);
+                if (previous != null) {
+                    previous.removePeerFileName(peerInfo, fileName);
+                    if (previous.peers.isEmpty()) {
+                        fileRegistry.remove(previousKey);
+                    }
+                }
+            }
+
+            FileEntry entry = fileRegistry.computeIfAbsent(key, k -> new FileEntry(contentHash, fileName));
+            entry.addPeer(peerInfo, fileName);
             System.out.println("Peer " + peerInfo.username + " now sharing '" + fileName + "'. Total peers for file: " + entry.peers.size());
         }
     }
 
-    private void handleSearch(String searchTerm, PrintWriter out) {
+    // Caller must hold the fileRegistry lock
+    private void removeFromEntry(String key) {
+        FileEntry entry = fileRegistry.get(key);
+        if (entry != null) {
+            entry.removePeer(peerInfo);
+            if (entry.peers.isEmpty()) {
+                fileRegistry.remove(key);
+            }
+        }
+    }
+
+    // Response format: name[/hash]=user:address[/peerFileName],...;... where peerFileName is
+    // only sent when that peer shares the same contents under a different name.
+    // With the peer-table feature each peer is listed once up front and entries refer to it
+    // by index instead: /user:address,user:address/name[/hash]=0,1[/peerFileName];...
+    void handleSearch(String searchTerm, PrintWriter out) {
         StringBuilder response = new StringBuilder();
-        Map<String, Set<PeerInfo>> matchingFiles = new LinkedHashMap<>();
+        StringBuilder peerTable = new StringBuilder();
+        Map<PeerInfo, Integer> peerIndexes = new HashMap<>();
         String lowerSearchTerm = searchTerm.toLowerCase().trim();
+        int matchCount = 0;
 
         synchronized (fileRegistry) {
-            for (FileEntry entry : fileRegistry) {
-                if (entry.fileName.toLowerCase().contains(lowerSearchTerm) && !entry.peers.isEmpty()) {
-                    matchingFiles.computeIfAbsent(entry.fileName, k -> new LinkedHashSet<>()).addAll(entry.peers);
+            for (FileEntry entry : fileRegistry.values()) {
+                if (entry.peers.isEmpty() || !entry.nameContains(lowerSearchTerm)) continue;
+
+                if (matchCount++ > 0) response.append(";");
+                response.append(entry.fileName);
+                if (entry.contentHash != null) {
+                    response.append("/").append(entry.contentHash);
+                }
+                response.append("=");
+                boolean firstPeer = true;
+                for (PeerInfo peer : entry.peers) {
+                    if (!firstPeer) response.append(",");
+                    firstPeer = false;
+                    if (peerTableReplies) {
+                        Integer index = peerIndexes.get(peer);
+                        if (index == null) {
+                            index = peerIndexes.size();
+                            peerIndexes.put(peer, index);
+                            if (index > 0) peerTable.append(",");
+                            peerTable.append(peer.username).append(":").append(peer.address);
+                        }
+                        response.append(index);
+                    } else {
+                        response.append(peer.username).append(":").append(peer.address);
+                    }
+                    String peerFileName = entry.fileNameFor(peer);
+                    if (!peerFileName.equals(entry.fileName)) {
+                        response.append("/").append(peerFileName);
+                    }
                 }
             }
         }
 
-        boolean firstFile = true;
-        for (Map.Entry<String, Set<PeerInfo>> entry : matchingFiles.entrySet()) {
-            if (!firstFile) response.append(";");
-            firstFile = false;
-            response.append(entry.getKey()).append("=");
-            boolean firstPeer = true;
-            for (PeerInfo peer : entry.getValue()) {
-                if (!firstPeer) response.append(",");
-                firstPeer = false;
-                response.append(peer.username).append(":").append(peer.address);
-            }
+        if (peerTableReplies && matchCount > 0) {
+            // File names cannot contain '/', so a leading one marks the table
+            response.insert(0, "/" + peerTable + "/");
         }
-        out.println(response.toString());
-        System.out.println("Search by '" + loggedInUser.getUsername() + "' for '" + searchTerm + "' found " + matchingFiles.size() + " files.");
+        reply(out, response.toString());
+        System.out.println("Search by '" + loggedInUser.getUsername() + "' for '" + searchTerm + "' found " + matchCount + " files.");
     }
 
     private void handleChangePassword(String currentPassword, String newPassword, PrintWriter out) {
         try {
-            if (!accountService.verifyPassword(currentPassword, loggedInUser.getPasswordHash())) {
-                out.println("CHANGE_PASSWORD_FAIL Current password is incorrect");
+            if (!accountService.verifyPassword(loggedInUser.getUsername(), currentPassword, loggedInUser.getPasswordHash())) {
+                reply(out, "CHANGE_PASSWORD_FAIL Current password is incorrect");
                 return;
             }
             if (accountService.changePassword(loggedInUser.getUsername(), newPassword)) {
-                out.println("CHANGE_PASSWORD_SUCCESS");
+                User updated = accountService.getUser(loggedInUser.getUsername());
+                if (updated != null) loggedInUser = updated;
+                reply(out, "CHANGE_PASSWORD_SUCCESS");
                 System.out.println("User '" + loggedInUser.getUsername() + "' changed their password.");
             } else {
-                out.println("CHANGE_PASSWORD_FAIL Could not update password.");
+                reply(out, "CHANGE_PASSWORD_FAIL Could not update password.");
             }
         } catch (IOException e) {
-            out.println("CHANGE_PASSWORD_FAIL " + e.getMessage());
+            reply(out, "CHANGE_PASSWORD_FAIL " + e.getMessage());
         }
     }
 
     private void handleDeleteAccount(String username, String password, PrintWriter out) {
         try {
             if (!loggedInUser.getUsername().equals(username)) {
-                out.println("DELETE_ACCOUNT_FAIL Username mismatch");
+                reply(out, "DELETE_ACCOUNT_FAIL Username mismatch");
                 return;
             }
-            if (!accountService.verifyPassword(password, loggedInUser.getPasswordHash())) {
-                out.println("DELETE_ACCOUNT_FAIL Incorrect password");
+            if (!accountService.verifyPassword(username, password, loggedInUser.getPasswordHash())) {
+                reply(out, "DELETE_ACCOUNT_FAIL Incorrect password");
                 return;
             }
             if (loggedInUser.isAdmin() && accountService.isOnlyAdmin(username)) {
-                out.println("DELETE_ACCOUNT_FAIL Cannot delete the only admin account");
+                reply(out, "DELETE_ACCOUNT_FAIL Cannot delete the only admin account");
                 return;
             }
             if (accountService.removeUser(username)) {
-                out.println("DELETE_ACCOUNT_SUCCESS");
+                reply(out, "DELETE_ACCOUNT_SUCCESS");
                 System.out.println("User '" + username + "' deleted their own account.");
                 //Close the connection by returning
                 return;
             } else {
-                out.println("DELETE_ACCOUNT_FAIL Could not delete account");
+                reply(out, "DELETE_ACCOUNT_FAIL Could not delete account");
             }
         } catch (IOException e) {
-            out.println("DELETE_ACCOUNT_FAIL " + e.getMessage());
+            reply(out, "DELETE_ACCOUNT_FAIL " + e.getMessage());
         }
     }
 
-    private void handleListPeers(PrintWriter out) {
-        StringBuilder response = new StringBuilder();
-        synchronized (activePeers) {
-            for (PeerInfo pi : activePeers) {
-                if (response.length() > 0) response.append(",");
-                response.append(pi.username).append("=").append(pi.address);
+    // LIST_PEERS                          -> user=address,... (everything)
+    // LIST_PEERS PAGE <offset> <limit>     -> PEERS <epoch> <version> <total> user=address,...
+    // LIST_PEERS SINCE <epoch> <version>   -> DELTA <epoch> <version> +user=address,-user=address,...
+    private void handleListPeers(String args, PrintWriter out) {
+        String[] options = args.trim().split(" ");
+        try {
+            if (options.length == 3 && options[0].equalsIgnoreCase("PAGE")) {
+                reply(out, activePeers.page(Integer.parseInt(options[1]), Integer.parseInt(options[2])));
+                return;
             }
+            if (options.length == 3 && options[0].equalsIgnoreCase("SINCE")) {
+                reply(out, activePeers.changesSince(Long.parseLong(options[1]), Long.parseLong(options[2])));
+                return;
+            }
+        } catch (NumberFormatException e) {
+            reply(out, "ERROR Invalid LIST_PEERS arguments");
+            return;
         }
-        out.println(response.toString());
+        reply(out, activePeers.listAll());
     }
 }
\ No newline at end of file
@@ -22,6 +22,10 @@ class CsvUserRepository implements UserRepository {
         this.passwordHasher = passwordHasher;
     }
 
+    Path getPath() {
+        return userCsvPath;
+    }
+
     @Override
     public Map<String, User> getUsers() {
         return users;
@@ -30,87 +34,23 @@ class CsvUserRepository implements UserRepository {
     @Override
     public void loadUsers() {
         users.clear();
-        List<String> lines;
-        try {
-            lines = Files.readAllLines(userCsvPath);
-            if (lines.size() <= 1) {
-                users.putIfAbsent("admin", createAdminWithStats());
-                return;
+        if (Files.exists(userCsvPath)) {
+            try {
+                long start = System.currentTimeMillis();
+                for (User user : UserCsvParser.parse(userCsvPath)) {
+                    users.put(user.getUsername(), user);
+                }
+                System.out.println("Parsed " + users.size() + " users from " + userCsvPath.getFileName()
+                        + " in " + (System.currentTimeMillis() - start) + " ms");
+            } catch (IOException e) {
+                System.err.println("FATAL Error: Could not read user CSV file at " + userCsvPath + ": " + e.getMessage());
+                users.clear();
             }
-        } catch (IOException e) {
-            System.err.println("FATAL Error: Could not read user CSV file at " + userCsvPath + ": " + e.getMessage());
-            AdminUser adminUser = createAdminWithStats();
-            users.put("admin", adminUser);
-            return;
         }
-
-        parseUserLines(lines);
         AdminUser adminUser = createAdminWithStats();
         users.put("admin", adminUser);
     }
 
-    private void parseUserLines(List<String> lines) {
-        for (int i = 1; i < lines.size(); i++) {
-            String line = lines.get(i);
-            String[] parts = line.split(",");
-
-            if (parts.length >= 6) {
-                parseNewFormatUser(parts);
-            } else if (parts.length >= 2) {
-                parseOldFormatUser(parts);
-            } else {
-                System.err.println("Warning: Corrupt line in user CSV file, skipping: " + line);
-            }
-        }
-    }
-
-    private void parseNewFormatUser(String[] parts) {
-        String username = parts[0];
-        String passwordHash = parts[1];
-        User user = new RegularUser(username, passwordHash);
-        // Parts[2] not required for non admins
-
-        // Download stats parts[3] and parts[4]
-
-        if (parts.length >= 5) {
-            try {
-                user.getDownloadStats().fromCsvString(parts[3] + "," + parts[4]);
-            } catch (NumberFormatException e) {
-                System.err.println("Warning: Invalid download stats for user " + username + ", using defaults");
-            }
-        }
-        // upload stats (parts[5] and parts[6])
-
-        if (parts.length >= 7) {
-            try {
-                user.getUploadStats().fromCsvString(parts[5] + "," + parts[6]);
-            } catch (NumberFormatException e) {
-                System.err.println("Warning: Invalid upload stats for user " + username + ", using defaults");
-            }
-        }
-
-        users.put(user.getUsername(), user);
-    }
-
-    private void parseOldFormatUser(String[] parts) {
-        User user = new RegularUser(parts[0], parts[1]);
-        if (parts.length >= 4) {
-            try {
-                user.getDownloadStats().fromCsvString(parts[2] + "," + parts[3]);
-            } catch (NumberFormatException e) {
-                System.err.println("Warning: Invalid download stats in old format for user " + parts[0] + ", using defaults");
-            }
-        }
-        if (parts.length >= 6) {
-            try {
-                user.getUploadStats().fromCsvString(parts[4] + "," + parts[5]);
-            } catch (NumberFormatException e) {
-                System.err.println("Warning: Invalid upload stats in old format for user " + parts[0] + ", using defaults");
-            }
-        }
-        users.put(user.getUsername(), user);
-    }
-
     private AdminUser createAdminWithStats() {
         DownloadStats downloadStats = new DownloadStats();
         UploadStats uploadStats = new UploadStats();
@@ -139,16 +79,47 @@ class CsvUserRepository implements UserRepository {
     }
 
     @Override
-    public void saveUsers() throws IOException {
+    public User findUser(String username) {
+        return users.get(username);
+    }
+
+    @Override
+    public boolean addUser(User user) throws IOException {
+        if (users.putIfAbsent(user.getUsername(), user) != null) {
+            return false;
+        }
         rewriteUserCsvFile();
+        return true;
     }
 
     @Override
-    public synchronized void saveUserStats(User user) throws IOException {
-        if (user != null) {
-            users.put(user.getUsername(), user);
+    public void updateUser(User user) throws IOException {
+        users.put(user.getUsername(), user);
+        if (user.isAdmin()) {
+            saveAdminStatsToFile(user);
+        } else {
+            rewriteUserCsvFile();
+        }
+    }
+
+    @Override
+    public boolean removeUser(String username) throws IOException {
+        if (users.remove(username) == null) {
+            return false;
         }
+        rewriteUserCsvFile();
+        return true;
+    }
+
+    @Override
+    public void saveUsers() throws IOException {
+        rewriteUserCsvFile();
+    }
 
+    // The session's User shares its stats objects with the map entry, so only the file needs writing.
+    // Putting it back would resurrect a deleted account or undo a password change.
+    @Override
+    public void saveUserStats(User user) throws IOException {
         if (user != null && user.isAdmin()) {
             saveAdminStatsToFile(user);
         } else {
@@ -160,7 +131,23 @@ class CsvUserRepository implements UserRepository {
         }
     }
 
-    private void rewriteUserCsvFile() throws IOException {
+    @Override
+    public void saveUserStats(List<User> batch) throws IOException {
+        boolean anyRegular = false;
+        for (User user : batch) {
+            if (user.isAdmin()) {
+                saveAdminStatsToFile(user);
+            } else {
+                anyRegular = true;
+            }
+        }
+        if (anyRegular) {
+            rewriteUserCsvFile();
+        }
+    }
+
+    // Writers snapshot the concurrent map, readers never wait on this lock
+    private synchronized void rewriteUserCsvFile() throws IOException {
         Path tempFilePath = getTempCsvPath();
         List<String> lines = new ArrayList<>();
         lines.add("username,passwordHash,downloadStats,uploadStats");
@@ -211,7 +198,7 @@ class CsvUserRepository implements UserRepository {
         }
     }
 
-    private void saveAdminStatsToFile(User adminUser) throws IOException {
+    private synchronized void saveAdminStatsToFile(User adminUser) throws IOException {
         Path parentDir = userCsvPath.getParent();
         Path adminStatsPath;
         if (parentDir != null) {
@@ -1,31 +1,44 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ Counters are striped adders so concurrent transfer threads never lose an update or take a lock.
+ The unreported pair collects what was added locally since the last drain, which is what the
+ client sends to the server as a STATS_DELTA.
+ */
 public class DownloadStats implements Stats{
 
-    private long downloadedFiles;
-    private long downloadedBytes;
+    private final LongAdder downloadedFiles = new LongAdder();
+    private final LongAdder downloadedBytes = new LongAdder();
+    private final LongAdder unreportedFiles = new LongAdder();
+    private final LongAdder unreportedBytes = new LongAdder();
+    // Created on first use, most accounts never transfer anything while the server is up
+    private volatile ThroughputSeries throughput;
 
     @Override
     public void addFile(){
-        downloadedFiles++;
+        downloadedFiles.increment();
+        unreportedFiles.increment();
     }
 
     @Override
     public void addBytes(long bytes){
-        downloadedBytes +=bytes;
+        downloadedBytes.add(bytes);
+        unreportedBytes.add(bytes);
     }
 
     @Override
     public long getFileCount(){
-        return downloadedFiles;
+        return downloadedFiles.sum();
     }
 
     @Override
     public long getTotalBytes(){
-        return downloadedBytes;
+        return downloadedBytes.sum();
     }
 
     @Override
     public String toCsvString(){
-        return downloadedFiles + "," + downloadedBytes;
+        return downloadedFiles.sum() + "," + downloadedBytes.sum();
     }
 
     @Override
@@ -33,9 +46,52 @@ public class DownloadStats implements Stats{
         if(csv==null||csv.isEmpty()) return;
         String[] parts = csv.split(",");
         if(parts.length == 2){
-            this.downloadedFiles = Long.parseLong(parts[0]);
-            this.downloadedBytes = Long.parseLong(parts[1]);
+            set(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        }
+    }
+
+    @Override
+    public void set(long files, long bytes){
+        downloadedFiles.reset();
+        downloadedFiles.add(files);
+        downloadedBytes.reset();
+        downloadedBytes.add(bytes);
+    }
+
+    @Override
+    public void addDelta(long files, long bytes){
+        downloadedFiles.add(files);
+        downloadedBytes.add(bytes);
+        if(bytes > 0) getThroughput().record(bytes);
+    }
+
+    @Override
+    public String drainUnreportedCsv(){
+        return unreportedFiles.sumThenReset() + "," + unreportedBytes.sumThenReset();
+    }
+
+    @Override
+    public void restoreUnreportedCsv(String csv){
+        long[] delta = Stats.parseDelta(csv);
+        unreportedFiles.add(delta[0]);
+        unreportedBytes.add(delta[1]);
+    }
+
+    @Override
+    public ThroughputSeries getThroughput(){
+        ThroughputSeries series = throughput;
+        if(series == null){
+            synchronized (this){
+                if(throughput == null) throughput = new ThroughputSeries();
+                series = throughput;
+            }
         }
+        return series;
+    }
+
+    @Override
+    public ThroughputSeries getThroughputIfRecorded(){
+        return throughput;
     }
 
 }
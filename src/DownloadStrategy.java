@@ -1,7 +1,20 @@
 import java.io.IOException;
+import java.util.List;
 
 public interface DownloadStrategy {
     void download(String peerAddress, String fileName) throws IOException;
+
+    // Every source holds the same contents, maybe under another name; the file is saved as fileName.
+    // A strategy that cannot rename what it saved has to use a source that already has that name.
+    default void download(List<SearchResult.Source> sources, String fileName) throws IOException {
+        for (SearchResult.Source source : sources) {
+            if (source.getFileName().equals(fileName)) {
+                download(source.getAddress(), fileName);
+                return;
+            }
+        }
+        throw new IOException("No peer shares " + fileName + " under that name");
+    }
 }
 
 
@@ -1,22 +1,97 @@
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class FileEntry {
+    // SHA-256 of the file contents, null for peers that shared by name only
+    String contentHash;
+    // First name the file was shared under, used for display
     String fileName;
     List<PeerInfo> peers = new ArrayList<>();
+    // The same bytes can be shared under different names, even by one peer, so remember each peer's own names
+    Map<PeerInfo, Set<String>> peerFileNames = new LinkedHashMap<>();
 
     FileEntry(String fileName) {
+        this(null, fileName);
+    }
+
+    FileEntry(String contentHash, String fileName) {
+        this.contentHash = contentHash;
         this.fileName = fileName;
     }
 
+    String registryKey() {
+        return registryKey(contentHash, fileName);
+    }
+
+    static String registryKey(String contentHash, String fileName) {
+        return contentHash != null ? contentHash : fileName;
+    }
+
+    static boolean isContentHash(String value) {
+        if (value.length() != 64) return false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
 
     void addPeer(PeerInfo peer) {
+        addPeer(peer, fileName);
+    }
+
+    void addPeer(PeerInfo peer, String peerFileName) {
         if (!peers.contains(peer)) {
             peers.add(peer);
         }
+        peerFileNames.computeIfAbsent(peer, p -> new LinkedHashSet<>()).add(peerFileName);
     }
 
     void removePeer(PeerInfo peer) {
         peers.remove(peer);
+        peerFileNames.remove(peer);
+        updateDisplayName();
+    }
+
+    // Drops one of the peer's names, and the peer itself once it has none left
+    void removePeerFileName(PeerInfo peer, String peerFileName) {
+        Set<String> names = peerFileNames.get(peer);
+        if (names == null || !names.remove(peerFileName)) return;
+        if (names.isEmpty()) {
+            removePeer(peer);
+        } else {
+            updateDisplayName();
+        }
+    }
+
+    private void updateDisplayName() {
+        if (peerFileNames.isEmpty()) return;
+        for (Set<String> names : peerFileNames.values()) {
+            if (names.contains(fileName)) return;
+        }
+        // Nobody uses the display name any more, show one that a remaining peer actually has
+        fileName = peerFileNames.values().iterator().next().iterator().next();
+    }
+
+    // The display name when the peer has it, else the first name the peer shared the file under
+    String fileNameFor(PeerInfo peer) {
+        Set<String> names = peerFileNames.get(peer);
+        if (names == null || names.contains(fileName)) return fileName;
+        return names.iterator().next();
+    }
+
+    // Matches against every alias the file is shared under, lowerTerm must already be lower case
+    boolean nameContains(String lowerTerm) {
+        if (fileName.toLowerCase().contains(lowerTerm)) return true;
+        for (Set<String> names : peerFileNames.values()) {
+            for (String alias : names) {
+                if (alias.toLowerCase().contains(lowerTerm)) return true;
+            }
+        }
+        return false;
     }
-}
\ No newline at end of file
+}
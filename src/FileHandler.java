@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 public interface FileHandler {
@@ -14,4 +15,16 @@ public interface FileHandler {
     void saveFileChunk(String fileName, byte[] data, int length)
             throws Exception;
     boolean fileExists(String fileName);
+    String getContentHash(String fileName)
+            throws IOException;
+
+    // A readable channel for zero-copy sends, or null to make callers use getInputStream
+    default FileChannel openChannel(String fileName) throws IOException {
+        return null;
+    }
+
+    // Per-piece hashes for verifying downloads, or null when this handler does not provide them
+    default PieceHashes getPieceHashes(String fileName) throws IOException {
+        return null;
+    }
 }
\ No newline at end of file
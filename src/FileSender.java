@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.LongConsumer;
+
+/**
+ The two ways an upload can be written to a peer. sendChannel hands the copy to the kernel with
+ FileChannel.transferTo (sendfile on Linux when the target is a socket), so the bytes never pass
+ through the Java heap; sendStream is the buffered copy loop kept for FileHandlers without a file
+ channel. Both report every piece written to progress, so a transfer that fails half way is still
+ counted, and return the bytes sent. sendChannel sends count bytes from position, less if the file ends first.
+ Given a TokenBucket, both move at most one bucket quantum per step and pay for it before the next.
+ */
+class FileSender {
+
+    static final int STREAM_BUFFER_SIZE = 8192;
+    // Bounds each transferTo call so progress and throughput are recorded while a big file is sent
+    static final long TRANSFER_STEP = 8L * 1024 * 1024;
+
+    private FileSender() {
+    }
+
+    static long sendChannel(FileChannel file, long position, long count, WritableByteChannel target,
+                            LongConsumer progress) throws IOException {
+        return sendChannel(file, position, count, target, progress, null);
+    }
+
+    static long sendChannel(FileChannel file, long position, long count, WritableByteChannel target,
+                            LongConsumer progress, TokenBucket bucket) throws IOException {
+        long step = bucket == null ? TRANSFER_STEP : bucket.quantum((int) TRANSFER_STEP);
+        long sent = 0;
+        while (sent < count) {
+            long transferred = file.transferTo(position + sent, Math.min(step, count - sent), target);
+            // Nothing moved: the file shrank under us
+            if (transferred <= 0) break;
+            sent += transferred;
+            progress.accept(transferred);
+            if (bucket != null) {
+                bucket.consume(transferred);
+                step = bucket.quantum((int) TRANSFER_STEP);
+            }
+        }
+        return sent;
+    }
+
+    static long sendStream(InputStream in, OutputStream out, LongConsumer progress) throws IOException {
+        return sendStream(in, out, progress, null);
+    }
+
+    static long sendStream(InputStream in, OutputStream out, LongConsumer progress, TokenBucket bucket) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long sent = 0;
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+            sent += bytesRead;
+            progress.accept(bytesRead);
+            if (bucket != null) {
+                bucket.consume(bytesRead);
+            }
+        }
+        return sent;
+    }
+}
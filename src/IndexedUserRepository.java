@@ -0,0 +1,484 @@
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Users live on disk and are read on first use, so startup opens two files and reads nothing else.
+ users.dat holds one fixed-size record per user:
+   [kind: 0 free, 1 user, 2 admin][name length][hash length][pad][name][hash][df][db][uf][ub]
+ and users.idx is an open-addressing hash table of (name hash, slot + 1) pairs with 0 for empty and
+ -1 for a deleted entry. Both are memory-mapped; a lookup is a few probes plus one record, an update
+ rewrites the record in place and freed records are chained into a free list for reuse.
+ At most CACHE_SIZE users are kept as objects, least recently used first out. A user still referenced
+ elsewhere (a logged-in handler) is found again through a weak reference, so there is never a second
+ object for the same account.
+ The first start without users.dat builds it from users.csv and admin_stats.csv; after that the CSV
+ files are no longer read or written.
+ */
+class IndexedUserRepository implements UserRepository {
+
+    /**
+     Told when a user object is created from its record, when it leaves the cache and when an object
+     that left the cache while still in use comes back into it.
+     */
+    interface ResidencyListener {
+        void loaded(User user);
+        void evicted(User user);
+        void resumed(User user);
+    }
+
+    interface StatsVisitor {
+        void visit(String username, long downloadBytes, long uploadBytes);
+    }
+
+    static final int CACHE_SIZE = Integer.getInteger("ripple.userCache", 10000);
+
+    private static final int DATA_MAGIC = 0x52555352; // "RUSR"
+    private static final int INDEX_MAGIC = 0x52494458; // "RIDX"
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 256;
+    private static final int NAME_OFFSET = 4;
+    private static final int MAX_NAME_BYTES = 64;
+    private static final int HASH_OFFSET = NAME_OFFSET + MAX_NAME_BYTES;
+    private static final int MAX_HASH_BYTES = 156;
+    private static final int STATS_OFFSET = HASH_OFFSET + MAX_HASH_BYTES;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int INITIAL_BUCKETS = 4096;
+    private static final long FORCE_INTERVAL_MS = 1000;
+
+    private static class LiveRef extends WeakReference<User> {
+        final String username;
+
+        LiveRef(User user, ReferenceQueue<User> queue) {
+            super(user, queue);
+            this.username = user.getUsername();
+        }
+    }
+
+    private final Path userCsvPath;
+    private final PasswordHasher passwordHasher;
+    private final Path dataPath;
+    private final Path indexPath;
+    private final Map<String, User> cache = new LinkedHashMap<String, User>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+            if (size() <= CACHE_SIZE) return false;
+            if (listener != null) listener.evicted(eldest.getValue());
+            return true;
+        }
+    };
+    private final Map<String, LiveRef> live = new HashMap<>();
+    private final ReferenceQueue<User> collected = new ReferenceQueue<>();
+    private final ScheduledExecutorService forcer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "user-index-force");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ResidencyListener listener;
+    private FileChannel dataChannel;
+    private FileChannel indexChannel;
+    private MappedByteBuffer data;
+    private MappedByteBuffer index;
+    private int slotCapacity;
+    private int buckets;
+    private volatile boolean dirty;
+
+    IndexedUserRepository(Path userCsvPath, PasswordHasher passwordHasher) {
+        this.userCsvPath = userCsvPath;
+        this.passwordHasher = passwordHasher;
+        Path parentDir = userCsvPath.toAbsolutePath().getParent();
+        this.dataPath = parentDir.resolve("users.dat");
+        this.indexPath = parentDir.resolve("users.idx");
+        forcer.scheduleWithFixedDelay(this::forceIfDirty, FORCE_INTERVAL_MS, FORCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void setResidencyListener(ResidencyListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized void loadUsers() {
+        try {
+            boolean fresh = !Files.exists(dataPath) || !Files.exists(indexPath);
+            if (fresh) {
+                Files.deleteIfExists(dataPath);
+                Files.deleteIfExists(indexPath);
+            }
+            openFiles();
+            if (fresh) {
+                importCsv();
+            }
+            System.out.println("Opened user index with " + index.getInt(8) + " users from " + dataPath.getFileName());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open user index " + dataPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void openFiles() throws IOException {
+        dataChannel = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (dataChannel.size() < HEADER_SIZE) {
+            mapData(INITIAL_SLOTS);
+            data.putInt(0, DATA_MAGIC);
+            data.putInt(4, RECORD_SIZE);
+            data.putInt(8, 0);  // slots handed out so far
+            data.putInt(12, 0); // free list head, slot + 1
+        } else {
+            mapData((int) ((dataChannel.size() - HEADER_SIZE) / RECORD_SIZE));
+            if (data.getInt(0) != DATA_MAGIC || data.getInt(4) != RECORD_SIZE) {
+                throw new IOException(dataPath.getFileName() + " has an unknown format");
+            }
+        }
+
+        if (indexChannel.size() < HEADER_SIZE) {
+            buckets = INITIAL_BUCKETS;
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) buckets * 8);
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, buckets);
+            index.putInt(8, 0);  // live entries
+            index.putInt(12, 0); // deleted entries
+        } else {
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+            if (index.getInt(0) != INDEX_MAGIC) {
+                throw new IOException(indexPath.getFileName() + " has an unknown format");
+            }
+            buckets = index.getInt(4);
+        }
+    }
+
+    private void importCsv() throws IOException {
+        CsvUserRepository csv = new CsvUserRepository(userCsvPath, passwordHasher);
+        csv.loadUsers();
+        for (User user : csv.getUsers().values()) {
+            if (!insert(user)) {
+                System.err.println("Warning: Not importing user " + user.getUsername() + ", name or password hash too long");
+            }
+        }
+        System.out.println("Built " + dataPath.getFileName() + " from " + userCsvPath.getFileName()
+                + " with " + index.getInt(8) + " users");
+        forceIfDirty();
+    }
+
+    private void mapData(int slots) throws IOException {
+        slotCapacity = slots;
+        data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * RECORD_SIZE);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private static int bucketOffset(int bucket) {
+        return HEADER_SIZE + bucket * 8;
+    }
+
+    // Bucket holding the username, or -1
+    private int findBucket(String username, byte[] name) {
+        int hash = username.hashCode();
+        int bucket = (hash & 0x7fffffff) & (buckets - 1);
+        for (int probes = 0; probes < buckets; probes++) {
+            int entry = bucketOffset(bucket);
+            int slot = index.getInt(entry + 4);
+            if (slot == 0) return -1;
+            if (slot > 0 && index.getInt(entry) == hash && nameMatches(slot - 1, name)) {
+                return bucket;
+            }
+            bucket = (bucket + 1) & (buckets - 1);
+        }
+        return -1;
+    }
+
+    private boolean nameMatches(int slot, byte[] name) {
+        int base = offset(slot);
+        if (data.get(base) == 0 || (data.get(base + 1) & 0xFF) != name.length) return false;
+        for (int i = 0; i < name.length; i++) {
+            if (data.get(base + NAME_OFFSET + i) != name[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized User findUser(String username) {
+        User user = cache.get(username);
+        if (user != null) return user;
+
+        expungeCollected();
+        LiveRef ref = live.get(username);
+        user = ref != null ? ref.get() : null;
+        if (user == null) {
+            byte[] name = username.getBytes(StandardCharsets.UTF_8);
+            int bucket = findBucket(username, name);
+            if (bucket < 0) return null;
+            user = readRecord(index.getInt(bucketOffset(bucket) + 4) - 1, username);
+            live.put(username, new LiveRef(user, collected));
+            if (listener != null) listener.loaded(user);
+        }
+        recache(user);
+        return user;
+    }
+
+    // Whatever was set aside at eviction is stale once the same object is in use again
+    private void recache(User user) {
+        if (cache.put(user.getUsername(), user) == null && listener != null) {
+            listener.resumed(user);
+        }
+    }
+
+    private void expungeCollected() {
+        LiveRef ref;
+        while ((ref = (LiveRef) collected.poll()) != null) {
+            if (live.get(ref.username) == ref) {
+                live.remove(ref.username);
+            }
+        }
+    }
+
+    private User readRecord(int slot, String username) {
+        int base = offset(slot);
+        byte[] hash = new byte[data.get(base + 2) & 0xFF];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = data.get(base + HASH_OFFSET + i);
+        }
+        String passwordHash = new String(hash, StandardCharsets.UTF_8);
+        User user = data.get(base) == 2
+                ? new AdminUser(passwordHash)
+                : new RegularUser(username, passwordHash);
+        int stats = base + STATS_OFFSET;
+        user.getDownloadStats().set(data.getLong(stats), data.getLong(stats + 8));
+        user.getUploadStats().set(data.getLong(stats + 16), data.getLong(stats + 24));
+        return user;
+    }
+
+    /**
+     The download and upload bytes of every stored user as users.dat has them, in one pass over the
+     records without creating User objects. Resident users may have newer totals in memory.
+     */
+    synchronized void forEachStats(StatsVisitor visitor) {
+        int slots = data.getInt(8);
+        byte[] name = new byte[MAX_NAME_BYTES];
+        for (int slot = 0; slot < slots; slot++) {
+            int base = offset(slot);
+            if (data.get(base) == 0) continue;
+            int length = data.get(base + 1) & 0xFF;
+            for (int i = 0; i < length; i++) {
+                name[i] = data.get(base + NAME_OFFSET + i);
+            }
+            int stats = base + STATS_OFFSET;
+            visitor.visit(new String(name, 0, length, StandardCharsets.UTF_8), data.getLong(stats + 8), data.getLong(stats + 24));
+        }
+    }
+
+    // False if the name or hash does not fit in a record
+    private boolean writeRecord(int slot, User user) {
+        byte[] name = user.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] hash = user.getPasswordHash().getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES || hash.length > MAX_HASH_BYTES) return false;
+        int base = offset(slot);
+        data.put(base + 1, (byte) name.length);
+        data.put(base + 2, (byte) hash.length);
+        for (int i = 0; i < name.length; i++) {
+            data.put(base + NAME_OFFSET + i, name[i]);
+        }
+        for (int i = 0; i < hash.length; i++) {
+            data.put(base + HASH_OFFSET + i, hash[i]);
+        }
+        writeStats(slot, user);
+        data.put(base, (byte) (user.isAdmin() ? 2 : 1));
+        dirty = true;
+        return true;
+    }
+
+    private void writeStats(int slot, User user) {
+        int stats = offset(slot) + STATS_OFFSET;
+        data.putLong(stats, user.getDownloadStats().getFileCount());
+        data.putLong(stats + 8, user.getDownloadStats().getTotalBytes());
+        data.putLong(stats + 16, user.getUploadStats().getFileCount());
+        data.putLong(stats + 24, user.getUploadStats().getTotalBytes());
+        dirty = true;
+    }
+
+    private int allocateSlot() throws IOException {
+        int freeHead = data.getInt(12);
+        if (freeHead > 0) {
+            int slot = freeHead - 1;
+            data.putInt(12, data.getInt(offset(slot) + NAME_OFFSET));
+            return slot;
+        }
+        int slot = data.getInt(8);
+        if (slot == slotCapacity) {
+            if (HEADER_SIZE + (long) slotCapacity * 2 * RECORD_SIZE > Integer.MAX_VALUE) {
+                throw new IOException(dataPath.getFileName() + " is full");
+            }
+            mapData(slotCapacity * 2);
+        }
+        data.putInt(8, slot + 1);
+        return slot;
+    }
+
+    private void freeSlot(int slot) {
+        int base = offset(slot);
+        data.put(base, (byte) 0);
+        data.putInt(base + NAME_OFFSET, data.getInt(12));
+        data.putInt(12, slot + 1);
+        dirty = true;
+    }
+
+    // False if the user exists already or does not fit in a record
+    private boolean insert(User user) throws IOException {
+        byte[] name = user.getUsername().getBytes(StandardCharsets.UTF_8);
+        if (findBucket(user.getUsername(), name) >= 0) return false;
+        if (index.getInt(8) + index.getInt(12) + 1 > buckets * 6L / 10) {
+            rehash(Math.max(INITIAL_BUCKETS, Integer.highestOneBit(index.getInt(8) * 4 + 1)));
+        }
+
+        int slot = allocateSlot();
+        if (!writeRecord(slot, user)) {
+            freeSlot(slot);
+            return false;
+        }
+        int hash = user.getUsername().hashCode();
+        int bucket = (hash & 0x7fffffff) & (buckets - 1);
+        while (index.getInt(bucketOffset(bucket) + 4) > 0) {
+            bucket = (bucket + 1) & (buckets - 1);
+        }
+        if (index.getInt(bucketOffset(bucket) + 4) < 0) {
+            index.putInt(12, index.getInt(12) - 1);
+        }
+        index.putInt(bucketOffset(bucket), hash);
+        index.putInt(bucketOffset(bucket) + 4, slot + 1);
+        index.putInt(8, index.getInt(8) + 1);
+        return true;
+    }
+
+    // Builds a bigger table without deleted entries next to the old one and swaps it in
+    private void rehash(int newBuckets) throws IOException {
+        Path temp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newBuckets * 8);
+            table.putInt(0, INDEX_MAGIC);
+            table.putInt(4, newBuckets);
+            table.putInt(8, index.getInt(8));
+            table.putInt(12, 0);
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                int hash = index.getInt(bucketOffset(bucket));
+                int slot = index.getInt(bucketOffset(bucket) + 4);
+                if (slot <= 0) continue;
+                int target = (hash & 0x7fffffff) & (newBuckets - 1);
+                while (table.getInt(bucketOffset(target) + 4) != 0) {
+                    target = (target + 1) & (newBuckets - 1);
+                }
+                table.putInt(bucketOffset(target), hash);
+                table.putInt(bucketOffset(target) + 4, slot);
+            }
+            table.force();
+        }
+        index.force();
+        indexChannel.close();
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+        buckets = newBuckets;
+    }
+
+    @Override
+    public synchronized boolean addUser(User user) throws IOException {
+        byte[] name = user.getUsername().getBytes(StandardCharsets.UTF_8);
+        if (findBucket(user.getUsername(), name) >= 0) return false;
+        if (!insert(user)) {
+            throw new IOException("Username or password is too long to store");
+        }
+        live.put(user.getUsername(), new LiveRef(user, collected));
+        cache.put(user.getUsername(), user);
+        return true;
+    }
+
+    @Override
+    public synchronized void updateUser(User user) throws IOException {
+        byte[] name = user.getUsername().getBytes(StandardCharsets.UTF_8);
+        int bucket = findBucket(user.getUsername(), name);
+        if (bucket < 0) {
+            if (!insert(user)) throw new IOException("Username or password is too long to store");
+        } else if (!writeRecord(index.getInt(bucketOffset(bucket) + 4) - 1, user)) {
+            throw new IOException("Password is too long to store");
+        }
+        live.put(user.getUsername(), new LiveRef(user, collected));
+        recache(user);
+    }
+
+    @Override
+    public synchronized boolean removeUser(String username) throws IOException {
+        int bucket = findBucket(username, username.getBytes(StandardCharsets.UTF_8));
+        if (bucket < 0) return false;
+        freeSlot(index.getInt(bucketOffset(bucket) + 4) - 1);
+        index.putInt(bucketOffset(bucket) + 4, -1);
+        index.putInt(8, index.getInt(8) - 1);
+        index.putInt(12, index.getInt(12) + 1);
+        cache.remove(username);
+        live.remove(username);
+        return true;
+    }
+
+    @Override
+    public synchronized void saveUserStats(User user) throws IOException {
+        int bucket = findBucket(user.getUsername(), user.getUsername().getBytes(StandardCharsets.UTF_8));
+        // Skip accounts removed while their stats were waiting to be written
+        if (bucket < 0) return;
+        writeStats(index.getInt(bucketOffset(bucket) + 4) - 1, user);
+        // An active user that had dropped out of the cache is back in use
+        LiveRef ref = live.get(user.getUsername());
+        if (ref != null && ref.get() == user) {
+            recache(user);
+        }
+    }
+
+    @Override
+    public void saveUsers() throws IOException {
+        forceIfDirty();
+    }
+
+    /**
+     Only the users currently held in memory; the rest are on disk.
+     */
+    @Override
+    public synchronized Map<String, User> getUsers() {
+        expungeCollected();
+        Map<String, User> resident = new HashMap<>();
+        for (Map.Entry<String, LiveRef> entry : live.entrySet()) {
+            User user = entry.getValue().get();
+            if (user != null) resident.put(entry.getKey(), user);
+        }
+        resident.putAll(cache);
+        return resident;
+    }
+
+    private synchronized void forceIfDirty() {
+        if (!dirty) return;
+        dirty = false;
+        data.force();
+        index.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        forcer.shutdown();
+        dirty = true;
+        forceIfDirty();
+        dataChannel.close();
+        indexChannel.close();
+    }
+}
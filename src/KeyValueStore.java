@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ A small string-to-string store kept in one append-only file, with the live entries indexed in memory.
+ A put or delete is one appended line, and the file is rewritten only when dead records outnumber live
+ ones. Lines are "crc32hex record" with records "PUT,key,value" or "DEL,key"; a header line carries a
+ generation that changes on every rewrite.
+ The server and the clients share the file, so every operation holds an exclusive lock on the sibling
+ .lock file and first catches up on whatever other processes appended since the last look (or reloads
+ the whole file if they rewrote it).
+ */
+class KeyValueStore implements AutoCloseable {
+
+    private static final String HEADER_PREFIX = "#RKV ";
+    private static final int HEADER_SIZE = HEADER_PREFIX.length() + 16 + 1;
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    // FileLock is per process, so instances on the same file also have to take turns inside the JVM
+    private static final Map<Path, Object> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final Object processLock;
+    private final Map<String, String> entries = new HashMap<>();
+    private final FileChannel lockChannel;
+    private FileChannel data;
+    private String generation;
+    private long readOffset;
+    private int records;
+
+    private interface Locked<T> {
+        T run() throws IOException;
+    }
+
+    KeyValueStore(Path path) throws IOException {
+        this.path = path.toAbsolutePath().normalize();
+        this.processLock = PROCESS_LOCKS.computeIfAbsent(this.path, p -> new Object());
+        this.lockChannel = FileChannel.open(this.path.resolveSibling(this.path.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        locked(() -> {
+            if (!Files.exists(this.path) || Files.size(this.path) < HEADER_SIZE) {
+                writeFile(new HashMap<>());
+            }
+            reload();
+            return null;
+        });
+    }
+
+    // Runs the operation with this process and every other one on the file shut out
+    private <T> T locked(Locked<T> operation) throws IOException {
+        synchronized (processLock) {
+            FileLock lock = lockChannel.lock();
+            try {
+                if (data != null) {
+                    refresh();
+                }
+                return operation.run();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    String get(String key) throws IOException {
+        return locked(() -> entries.get(key));
+    }
+
+    Map<String, String> snapshot() throws IOException {
+        return locked(() -> new HashMap<>(entries));
+    }
+
+    void put(String key, String value) throws IOException {
+        if (key.indexOf(',') >= 0 || key.indexOf('\n') >= 0 || value.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Key may not contain ',' and neither may contain a line break");
+        }
+        locked(() -> {
+            if (!value.equals(entries.get(key))) {
+                append("PUT," + key + "," + value);
+                entries.put(key, value);
+                compactIfNeeded();
+            }
+            return null;
+        });
+    }
+
+    /**
+     Returns false if there was nothing stored under the key.
+     */
+    boolean delete(String key) throws IOException {
+        return locked(() -> {
+            if (!entries.containsKey(key)) return false;
+            append("DEL," + key);
+            entries.remove(key);
+            compactIfNeeded();
+            return true;
+        });
+    }
+
+    /**
+     Adds every row of a legacy key,value file that is not in the store yet.
+     */
+    int importCsv(Path csv) throws IOException {
+        return locked(() -> {
+            int imported = 0;
+            for (String line : Files.readAllLines(csv)) {
+                if (line.trim().isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split(",", 2);
+                if (parts.length == 2 && !entries.containsKey(parts[0])) {
+                    append("PUT," + parts[0] + "," + parts[1]);
+                    entries.put(parts[0], parts[1]);
+                    imported++;
+                }
+            }
+            compactIfNeeded();
+            return imported;
+        });
+    }
+
+    // Caller holds the file lock
+    private void refresh() throws IOException {
+        if (!generation.equals(readGeneration())) {
+            reload();
+        } else if (data.size() > readOffset) {
+            replayFrom(readOffset);
+        }
+    }
+
+    private void reload() throws IOException {
+        if (data != null) data.close();
+        data = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        generation = readGeneration();
+        entries.clear();
+        records = 0;
+        replayFrom(HEADER_SIZE);
+    }
+
+    private String readGeneration() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading until the header is complete or the file ends
+            }
+            return new String(header.array(), 0, header.position(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void replayFrom(long offset) throws IOException {
+        long size = data.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) (size - offset));
+        while (buffer.hasRemaining() && data.read(buffer, offset + buffer.position()) >= 0) {
+            // positional reads until the tail is in memory
+        }
+        byte[] bytes = buffer.array();
+        int start = 0;
+        while (start < bytes.length) {
+            int end = start;
+            while (end < bytes.length && bytes[end] != '\n') end++;
+            if (end == bytes.length || !apply(new String(bytes, start, end - start, StandardCharsets.UTF_8))) {
+                System.err.println("Warning: Discarding damaged tail of " + path.getFileName() + " at byte " + (offset + start));
+                data.truncate(offset + start);
+                break;
+            }
+            records++;
+            start = end + 1;
+        }
+        readOffset = offset + start;
+    }
+
+    private boolean apply(String line) {
+        int space = line.indexOf(' ');
+        if (space != 8) return false;
+        String record = line.substring(space + 1);
+        if (!checksum(record).equals(line.substring(0, space))) return false;
+
+        String[] parts = record.split(",", 3);
+        if (parts[0].equals("PUT") && parts.length == 3) {
+            entries.put(parts[1], parts[2]);
+            return true;
+        }
+        if (parts[0].equals("DEL") && parts.length == 2) {
+            entries.remove(parts[1]);
+            return true;
+        }
+        return false;
+    }
+
+    private void append(String record) throws IOException {
+        ByteBuffer line = ByteBuffer.wrap((checksum(record) + " " + record + "\n").getBytes(StandardCharsets.UTF_8));
+        long position = data.size();
+        while (line.hasRemaining()) {
+            position += data.write(line, position);
+        }
+        readOffset = position;
+        records++;
+    }
+
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue());
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (records > Math.max(MIN_COMPACT_RECORDS, entries.size() * 2)) {
+            writeFile(entries);
+            reload();
+        }
+    }
+
+    // Writes a fresh file with a new generation and moves it into place
+    private void writeFile(Map<String, String> live) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(HEADER_PREFIX).append(String.format("%016x", new SecureRandom().nextLong())).append('\n');
+        for (Map.Entry<String, String> entry : live.entrySet()) {
+            String record = "PUT," + entry.getKey() + "," + entry.getValue();
+            sb.append(checksum(record)).append(' ').append(record).append('\n');
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (processLock) {
+            if (data != null) data.close();
+            lockChannel.close();
+        }
+    }
+}
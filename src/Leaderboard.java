@@ -0,0 +1,117 @@
+/**
+ The users with the largest value of one stat, kept sorted as stats change so a query is a copy of
+ the first k entries. It tracks CANDIDATES users rather than just the top TOP_SIZE: stats normally only
+ grow, but an UPDATE_STATS can lower a total, and the extra rows keep the top correct when a leader drops.
+ Each update is a scan and a shift over at most CANDIDATES entries.
+
+ Once a user has been left off for lack of room, the board can no longer vouch for every row: a
+ tracked user whose total went down may now rank below someone it does not track. exact counts the
+ leading rows that are still certain, queries return no more than that, and depleted() tells the
+ owner when so few are left that the board should be seeded again from all users.
+ */
+class Leaderboard {
+
+    static final int TOP_SIZE = 10;
+    static final int CANDIDATES = 64;
+    private static final int MIN_EXACT = (TOP_SIZE + CANDIDATES) / 2;
+
+    private final String[] names = new String[CANDIDATES];
+    private final long[] values = new long[CANDIDATES];
+    private int size;
+    private int exact;
+    // Some user with a positive value is not on the board
+    private boolean truncated;
+
+    synchronized void update(String username, long value) {
+        int current = indexOf(username);
+        boolean lowered = false;
+        if (current >= 0) {
+            lowered = value < values[current];
+            removeAt(current);
+        } else if (size == CANDIDATES && !ranksAbove(username, value, CANDIDATES - 1)) {
+            if (value > 0) truncated = true;
+            return;
+        }
+        if (value <= 0) return;
+        if (size == CANDIDATES) {
+            size--;
+            names[size] = null;
+            exact = Math.min(exact, size);
+            truncated = true;
+        }
+        int position = size;
+        while (position > 0 && ranksAbove(username, value, position - 1)) {
+            names[position] = names[position - 1];
+            values[position] = values[position - 1];
+            position--;
+        }
+        names[position] = username;
+        values[position] = value;
+        size++;
+        if (!truncated) {
+            exact = size;
+        } else if (lowered) {
+            // Someone off the board may now rank above this user
+            exact = Math.min(exact, position);
+        } else if (position < exact) {
+            exact++;
+        }
+    }
+
+    synchronized void remove(String username) {
+        int current = indexOf(username);
+        if (current >= 0) removeAt(current);
+    }
+
+    /**
+     True when the board has lost enough certain rows that seeding it again would bring back more
+     */
+    synchronized boolean depleted() {
+        return truncated && exact < MIN_EXACT;
+    }
+
+    /**
+     Takes over the entries of a board freshly seeded from all users
+     */
+    synchronized void replaceWith(Leaderboard seeded) {
+        synchronized (seeded) {
+            System.arraycopy(seeded.names, 0, names, 0, CANDIDATES);
+            System.arraycopy(seeded.values, 0, values, 0, CANDIDATES);
+            size = seeded.size;
+            exact = seeded.exact;
+            truncated = seeded.truncated;
+        }
+    }
+
+    /**
+     name=value;name=value for the first k users, largest first
+     */
+    synchronized String format(int k) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Math.min(k, exact); i++) {
+            if (i > 0) sb.append(';');
+            sb.append(names[i]).append('=').append(values[i]);
+        }
+        return sb.toString();
+    }
+
+    // Larger value first, ties by name so the order is stable
+    private boolean ranksAbove(String username, long value, int index) {
+        return value > values[index] || (value == values[index] && username.compareTo(names[index]) < 0);
+    }
+
+    private int indexOf(String username) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(username)) return i;
+        }
+        return -1;
+    }
+
+    private void removeAt(int index) {
+        System.arraycopy(names, index + 1, names, index, size - index - 1);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        names[size] = null;
+        if (index < exact) exact--;
+    }
+}
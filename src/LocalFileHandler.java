@@ -1,10 +1,21 @@
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class LocalFileHandler implements FileHandler {
+    static final String CACHE_DIRECTORY = ".ripple-cache";
+
     private final Path sharedDirectory;
+    // File name -> hash, only recomputed when the file's size or modification time changes
+    private final Map<String, CachedHash> contentHashes = new ConcurrentHashMap<>();
+    // One lock per file so concurrent PIECES requests hash it once
+    private final Map<String, Object> pieceLocks = new ConcurrentHashMap<>();
 
     public LocalFileHandler(String sharedDirPath) throws IOException {
         this.sharedDirectory = Paths.get(sharedDirPath);
@@ -20,7 +31,7 @@ public class LocalFileHandler implements FileHandler {
         try {
             DirectoryStream<Path> files = Files.newDirectoryStream(sharedDirectory);
             for (Path p : files) {
-                if (Files.isRegularFile(p)) {
+                if (Files.isRegularFile(p) && !PartialDownload.isPartialFile(p.getFileName().toString())) {
                     fileNames.add(p.getFileName().toString());
                 }
             }
@@ -40,7 +51,7 @@ public class LocalFileHandler implements FileHandler {
         try {
             DirectoryStream<Path> files = Files.newDirectoryStream(sharedDirectory);
             for (Path p : files) {
-                if (Files.isRegularFile(p)) {
+                if (Files.isRegularFile(p) && !PartialDownload.isPartialFile(p.getFileName().toString())) {
                     SharedFile sf = SharedFileFactory.createSharedFile(p);
                     sharedFiles.add(sf);
                 }
@@ -74,6 +85,15 @@ public class LocalFileHandler implements FileHandler {
         return in;
     }
 
+    @Override
+    public FileChannel openChannel(String fileName) throws IOException {
+        Path filePath = sharedFile(fileName);
+        if (!Files.exists(filePath)) {
+            throw new FileNotFoundException("File not found in shared directory: " + fileName);
+        }
+        return FileChannel.open(filePath, StandardOpenOption.READ);
+    }
+
     @Override
     public byte[] readFileChunk(String fileName, int chunkSize) throws IOException {
         Path filePath = sharedDirectory.resolve(fileName);
@@ -108,4 +128,90 @@ public class LocalFileHandler implements FileHandler {
     public boolean fileExists(String fileName) {
         return Files.exists(sharedDirectory.resolve(fileName));
     }
+
+    /**
+     SHA-256 of the file contents as lower case hex, cached until the file changes
+     */
+    @Override
+    public String getContentHash(String fileName) throws IOException {
+        Path filePath = sharedFile(fileName);
+        long size = Files.size(filePath);
+        long modified = Files.getLastModifiedTime(filePath).toMillis();
+
+        CachedHash cached = contentHashes.get(fileName);
+        if (cached != null && cached.size == size && cached.modified == modified) {
+            return cached.hash;
+        }
+
+        String hash = sha256Hex(filePath);
+        contentHashes.put(fileName, new CachedHash(size, modified, hash));
+        return hash;
+    }
+
+    /**
+     Piece hashes of the file, kept in .ripple-cache inside the shared directory between runs
+     */
+    @Override
+    public PieceHashes getPieceHashes(String fileName) throws IOException {
+        Path filePath = sharedFile(fileName);
+        if (!Files.isRegularFile(filePath)) {
+            throw new FileNotFoundException("File not found in shared directory: " + fileName);
+        }
+        synchronized (pieceLocks.computeIfAbsent(fileName, name -> new Object())) {
+            return PieceHashes.cached(filePath, sharedDirectory.resolve(CACHE_DIRECTORY).resolve(fileName + ".pieces"));
+        }
+    }
+
+    // Names in peer requests are only trusted as plain file names directly inside the shared directory
+    private Path sharedFile(String fileName) throws IOException {
+        if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")
+                || fileName.indexOf('/') >= 0 || fileName.indexOf('\\') >= 0) {
+            throw new FileNotFoundException("Not a file in the shared directory: " + fileName);
+        }
+        Path directory = sharedDirectory.toAbsolutePath().normalize();
+        Path filePath;
+        try {
+            filePath = directory.resolve(fileName).normalize();
+        } catch (InvalidPathException e) {
+            throw new FileNotFoundException("Not a file in the shared directory: " + fileName);
+        }
+        if (!directory.equals(filePath.getParent())) {
+            throw new FileNotFoundException("Not a file in the shared directory: " + fileName);
+        }
+        return filePath;
+    }
+
+    static String sha256Hex(Path filePath) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+        try (InputStream in = Files.newInputStream(filePath)) {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static class CachedHash {
+        final long size;
+        final long modified;
+        final String hash;
+
+        CachedHash(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
 }
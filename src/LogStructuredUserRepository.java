@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ users.csv (plus admin_stats.csv) is the checkpoint and every change since then is appended
+ to users.log, so a signup or a stats update costs one small append instead of a full rewrite.
+ Each log line is "crc32hex record" and records hold absolute values, which makes replay idempotent:
+   PUT,username,passwordHash,df,db,uf,ub
+   STATS,username,df,db,uf,ub
+   DEL,username
+ Startup loads the checkpoint and replays the log; replay stops at the first record whose checksum
+ does not match (a torn write from a crash) and cuts the log there.
+ Once the log outgrows the checkpoint a background thread writes a new checkpoint. The current log is
+ first renamed to users.log.old and a fresh one started, so appends never wait for the rewrite; the old
+ log is deleted only after the new checkpoint has been moved into place.
+ */
+class LogStructuredUserRepository implements UserRepository {
+
+    private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+    private final CsvUserRepository checkpoint;
+    private final Path logPath;
+    private final Path previousLogPath;
+    private final Object appendLock = new Object();
+    private final Object compactSignal = new Object();
+    private FileChannel log;
+    private volatile boolean compactRequested;
+
+    LogStructuredUserRepository(Path userCsvPath, PasswordHasher passwordHasher) {
+        this.checkpoint = new CsvUserRepository(userCsvPath, passwordHasher);
+        Path parentDir = userCsvPath.toAbsolutePath().getParent();
+        this.logPath = parentDir.resolve("users.log");
+        this.previousLogPath = parentDir.resolve("users.log.old");
+
+        Thread compactor = new Thread(this::compactLoop, "user-log-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    @Override
+    public Map<String, User> getUsers() {
+        return checkpoint.getUsers();
+    }
+
+    @Override
+    public User findUser(String username) {
+        return checkpoint.findUser(username);
+    }
+
+    @Override
+    public void loadUsers() {
+        synchronized (appendLock) {
+            checkpoint.loadUsers();
+            try {
+                // A crash during compaction leaves the old log behind, it still has to be applied first
+                if (Files.exists(previousLogPath)) {
+                    replay(previousLogPath);
+                }
+                replay(logPath);
+                if (log == null) {
+                    log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not replay user log " + logPath + ": " + e.getMessage(), e);
+            }
+        }
+        requestCompactionIfNeeded();
+    }
+
+    @Override
+    public boolean addUser(User user) throws IOException {
+        synchronized (appendLock) {
+            if (checkpoint.getUsers().putIfAbsent(user.getUsername(), user) != null) {
+                return false;
+            }
+            append(putRecord(user));
+        }
+        requestCompactionIfNeeded();
+        return true;
+    }
+
+    @Override
+    public void updateUser(User user) throws IOException {
+        synchronized (appendLock) {
+            checkpoint.getUsers().put(user.getUsername(), user);
+            append(putRecord(user));
+        }
+        requestCompactionIfNeeded();
+    }
+
+    @Override
+    public boolean removeUser(String username) throws IOException {
+        synchronized (appendLock) {
+            if (checkpoint.getUsers().remove(username) == null) {
+                return false;
+            }
+            append("DEL," + username);
+        }
+        requestCompactionIfNeeded();
+        return true;
+    }
+
+    @Override
+    public void saveUserStats(User user) throws IOException {
+        synchronized (appendLock) {
+            // Skip accounts removed while their stats were waiting to be written
+            if (checkpoint.findUser(user.getUsername()) == null) return;
+            append("STATS," + user.getUsername() + ","
+                    + user.getDownloadStats().toCsvString() + "," + user.getUploadStats().toCsvString());
+        }
+        requestCompactionIfNeeded();
+    }
+
+    @Override
+    public void saveUsers() throws IOException {
+        compact();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (log != null) log.close();
+        }
+    }
+
+    private static String putRecord(User user) {
+        return "PUT," + user.getUsername() + "," + user.getPasswordHash() + ","
+                + user.getDownloadStats().toCsvString() + "," + user.getUploadStats().toCsvString();
+    }
+
+    private void append(String record) throws IOException {
+        byte[] line = (checksum(record) + " " + record + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+    }
+
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue());
+    }
+
+    private void replay(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        byte[] bytes = Files.readAllBytes(path);
+        int start = 0;
+        int applied = 0;
+        while (start < bytes.length) {
+            int end = start;
+            while (end < bytes.length && bytes[end] != '\n') end++;
+            String line = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            if (end == bytes.length || !applyLine(line)) {
+                System.err.println("Warning: Discarding damaged tail of " + path.getFileName() + " at byte " + start);
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(start);
+                }
+                break;
+            }
+            applied++;
+            start = end + 1;
+        }
+        System.out.println("Replayed " + applied + " user log records from " + path.getFileName());
+    }
+
+    private boolean applyLine(String line) {
+        int space = line.indexOf(' ');
+        if (space != 8) return false;
+        String record = line.substring(space + 1);
+        if (!checksum(record).equals(line.substring(0, space))) return false;
+
+        String[] parts = record.split(",");
+        Map<String, User> users = checkpoint.getUsers();
+        try {
+            switch (parts[0]) {
+                case "PUT": {
+                    if (parts.length != 7) return false;
+                    DownloadStats downloadStats = new DownloadStats();
+                    UploadStats uploadStats = new UploadStats();
+                    downloadStats.fromCsvString(parts[3] + "," + parts[4]);
+                    uploadStats.fromCsvString(parts[5] + "," + parts[6]);
+                    User user = "admin".equals(parts[1])
+                            ? new AdminUser(parts[2], downloadStats, uploadStats)
+                            : new RegularUser(parts[1], parts[2], downloadStats, uploadStats);
+                    users.put(user.getUsername(), user);
+                    return true;
+                }
+                case "STATS": {
+                    if (parts.length != 6) return false;
+                    User user = users.get(parts[1]);
+                    if (user != null) {
+                        user.getDownloadStats().fromCsvString(parts[2] + "," + parts[3]);
+                        user.getUploadStats().fromCsvString(parts[4] + "," + parts[5]);
+                    }
+                    return true;
+                }
+                case "DEL":
+                    if (parts.length != 2) return false;
+                    users.remove(parts[1]);
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void requestCompactionIfNeeded() {
+        if (compactRequested) return;
+        try {
+            long logSize;
+            synchronized (appendLock) {
+                logSize = log == null ? 0 : log.size();
+            }
+            long checkpointSize = Files.exists(checkpoint.getPath()) ? Files.size(checkpoint.getPath()) : 0;
+            if (logSize > Math.max(MIN_COMPACT_BYTES, checkpointSize)) {
+                compactRequested = true;
+                synchronized (compactSignal) {
+                    compactSignal.notify();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Could not check user log size: " + e.getMessage());
+        }
+    }
+
+    private void compactLoop() {
+        while (true) {
+            synchronized (compactSignal) {
+                try {
+                    while (!compactRequested) {
+                        compactSignal.wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("Warning: User log compaction failed, will retry later: " + e.getMessage());
+            } finally {
+                compactRequested = false;
+            }
+        }
+    }
+
+    private synchronized void compact() throws IOException {
+        synchronized (appendLock) {
+            if (Files.exists(previousLogPath)) {
+                // An earlier compaction never finished; keep its log and fold the current one into it
+                Files.write(previousLogPath, Files.readAllBytes(logPath), StandardOpenOption.APPEND);
+                log.truncate(0);
+            } else {
+                log.close();
+                try {
+                    Files.move(logPath, previousLogPath, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    // A fresh log after the move, or the same one again if it failed
+                    log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+            }
+        }
+
+        // Anything that changes from here on is in the new log, so the checkpoint may safely see it too
+        long start = System.currentTimeMillis();
+        checkpoint.saveUsers();
+        User admin = checkpoint.findUser("admin");
+        if (admin != null) {
+            checkpoint.saveUserStats(admin);
+        }
+        Files.delete(previousLogPath);
+        System.out.println("Compacted user log into " + checkpoint.getPath().getFileName()
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Keeps download/upload stats in user_stats.bin, one fixed-size record per user at a slot that never
+ moves, while credentials stay in the wrapped repository. The file is memory-mapped, so saving stats
+ is four 8-byte stores and a background task calls force() once a second when something changed.
+
+ Layout: a 16-byte header (magic, version, record size), then RECORD_SIZE-byte records of
+ [used flag][name length][name, up to MAX_NAME_BYTES][padding][df][db][uf][ub].
+
+ On load, users with a record take their stats from it and users without one are imported from
+ users.csv. On close the stats are exported back through the wrapped repository so users.csv
+ stays usable without this file.
+ */
+class MappedStatsRepository implements UserRepository {
+
+    private static final int MAGIC = 0x52535453; // "RSTS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 128;
+    private static final int MAX_NAME_BYTES = 64;
+    private static final int STATS_OFFSET = 96;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final long FORCE_INTERVAL_MS = 1000;
+
+    private final UserRepository credentials;
+    private final Path statsPath;
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private final ScheduledExecutorService forcer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "stats-force");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FileChannel channel;
+    private volatile MappedByteBuffer buffer;
+    private int capacity;
+    private int nextSlot;
+    private volatile boolean dirty;
+
+    MappedStatsRepository(UserRepository credentials, Path userCsvPath) {
+        this.credentials = credentials;
+        this.statsPath = userCsvPath.toAbsolutePath().getParent().resolve("user_stats.bin");
+        forcer.scheduleWithFixedDelay(this::forceIfDirty, FORCE_INTERVAL_MS, FORCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Map<String, User> getUsers() {
+        return credentials.getUsers();
+    }
+
+    @Override
+    public User findUser(String username) {
+        return credentials.findUser(username);
+    }
+
+    @Override
+    public synchronized void loadUsers() {
+        credentials.loadUsers();
+        try {
+            openStatsFile();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open stats file " + statsPath + ": " + e.getMessage(), e);
+        }
+
+        int imported = 0;
+        for (User user : credentials.getUsers().values()) {
+            Integer slot = slots.get(user.getUsername());
+            if (slot != null) {
+                readStats(slot, user);
+            } else if (allocate(user) != null) {
+                imported++;
+            }
+        }
+        // Records of users that are gone from the credential store can be reused
+        for (Map.Entry<String, Integer> entry : slots.entrySet()) {
+            if (credentials.findUser(entry.getKey()) == null) {
+                release(entry.getKey());
+            }
+        }
+        dirty = true;
+        System.out.println("Loaded stats for " + slots.size() + " users from " + statsPath.getFileName()
+                + (imported > 0 ? ", imported " + imported + " from CSV" : ""));
+    }
+
+    private void openStatsFile() throws IOException {
+        channel = FileChannel.open(statsPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        boolean fresh = size < HEADER_SIZE;
+        int existing = fresh ? 0 : (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+        map(Math.max(INITIAL_SLOTS, existing));
+
+        if (fresh || buffer.getInt(0) != MAGIC || buffer.getInt(8) != RECORD_SIZE) {
+            if (!fresh) {
+                System.err.println("Warning: " + statsPath.getFileName() + " has an unknown format, rebuilding it from CSV");
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, RECORD_SIZE);
+            for (int slot = 0; slot < capacity; slot++) {
+                buffer.put(offset(slot), (byte) 0);
+            }
+            existing = 0;
+        }
+
+        nextSlot = existing;
+        for (int slot = 0; slot < existing; slot++) {
+            int base = offset(slot);
+            if (buffer.get(base) == 0) {
+                freeSlots.add(slot);
+                continue;
+            }
+            int length = Math.min(buffer.get(base + 1) & 0xFF, MAX_NAME_BYTES);
+            byte[] name = new byte[length];
+            for (int i = 0; i < length; i++) {
+                name[i] = buffer.get(base + 2 + i);
+            }
+            slots.put(new String(name, StandardCharsets.UTF_8), slot);
+        }
+    }
+
+    private void map(int slotCount) throws IOException {
+        capacity = slotCount;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * RECORD_SIZE);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    // Null if the name does not fit in a record, those users keep their stats in the CSV only
+    private synchronized Integer allocate(User user) {
+        byte[] name = user.getUsername().getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) return null;
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            if (nextSlot == capacity) {
+                try {
+                    map(capacity * 2);
+                } catch (IOException e) {
+                    System.err.println("Warning: Could not grow " + statsPath.getFileName() + ": " + e.getMessage());
+                    return null;
+                }
+            }
+            slot = nextSlot++;
+        }
+        int base = offset(slot);
+        buffer.put(base + 1, (byte) name.length);
+        for (int i = 0; i < name.length; i++) {
+            buffer.put(base + 2 + i, name[i]);
+        }
+        writeStats(slot, user);
+        buffer.put(base, (byte) 1);
+        slots.put(user.getUsername(), slot);
+        dirty = true;
+        return slot;
+    }
+
+    private synchronized void release(String username) {
+        Integer slot = slots.remove(username);
+        if (slot != null) {
+            buffer.put(offset(slot), (byte) 0);
+            freeSlots.add(slot);
+            dirty = true;
+        }
+    }
+
+    private void writeStats(int slot, User user) {
+        MappedByteBuffer records = buffer;
+        int base = offset(slot) + STATS_OFFSET;
+        records.putLong(base, user.getDownloadStats().getFileCount());
+        records.putLong(base + 8, user.getDownloadStats().getTotalBytes());
+        records.putLong(base + 16, user.getUploadStats().getFileCount());
+        records.putLong(base + 24, user.getUploadStats().getTotalBytes());
+        dirty = true;
+    }
+
+    private void readStats(int slot, User user) {
+        int base = offset(slot) + STATS_OFFSET;
+        user.getDownloadStats().fromCsvString(buffer.getLong(base) + "," + buffer.getLong(base + 8));
+        user.getUploadStats().fromCsvString(buffer.getLong(base + 16) + "," + buffer.getLong(base + 24));
+    }
+
+    private void forceIfDirty() {
+        if (!dirty) return;
+        dirty = false;
+        buffer.force();
+    }
+
+    @Override
+    public void saveUserStats(User user) throws IOException {
+        Integer slot = slots.get(user.getUsername());
+        if (slot != null) {
+            writeStats(slot, user);
+        } else if (credentials.findUser(user.getUsername()) != null && allocate(user) == null) {
+            credentials.saveUserStats(user);
+        }
+    }
+
+    @Override
+    public void saveUserStats(List<User> users) throws IOException {
+        for (User user : users) {
+            saveUserStats(user);
+        }
+    }
+
+    @Override
+    public boolean addUser(User user) throws IOException {
+        if (!credentials.addUser(user)) return false;
+        allocate(user);
+        return true;
+    }
+
+    @Override
+    public void updateUser(User user) throws IOException {
+        credentials.updateUser(user);
+        saveUserStats(user);
+    }
+
+    @Override
+    public boolean removeUser(String username) throws IOException {
+        if (!credentials.removeUser(username)) return false;
+        release(username);
+        return true;
+    }
+
+    @Override
+    public void saveUsers() throws IOException {
+        credentials.saveUsers();
+    }
+
+    // Writes the current stats back into users.csv and admin_stats.csv
+    void exportToCsv() throws IOException {
+        credentials.saveUsers();
+        User admin = credentials.findUser("admin");
+        if (admin != null) {
+            credentials.saveUserStats(admin);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        forcer.shutdown();
+        buffer.force();
+        exportToCsv();
+        credentials.close();
+        channel.close();
+    }
+}
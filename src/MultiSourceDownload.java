@@ -0,0 +1,467 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ Fetches one file from every peer that has it. The missing part of the file is cut into segments
+ that the peers take from a shared queue, one DOWNLOAD_RANGE connection per segment, and each
+ segment is written at its offset in name.part, so a fast peer simply ends up taking more of them.
+ Once the queue is empty an idle peer splits the unfinished segment that will take longest to
+ finish, judged by its owner's measured rate, and fetches the back of it, sized so both should end
+ together. A segment that fails goes back on the queue for the remaining peers.
+
+ Segments start and end on piece boundaries. Each piece is checked against the peers' piece hashes
+ as it arrives; a piece that fails goes back on the queue by itself, and a peer that sends more
+ than MAX_CORRUPT_PIECES bad pieces is dropped.
+
+ Finished ranges are kept in the PartialDownload sidecar, so an interrupted download resumes with
+ whatever sources are around next time. With fewer than two usable sources the single-peer strategy
+ does the download. A peer that answers BUSY hands its segment back to the others and is asked
+ again after a pause.
+ */
+public class MultiSourceDownload implements DownloadStrategy {
+
+    static final long MAX_SEGMENT = 8L * 1024 * 1024;
+    static final int MAX_CORRUPT_PIECES = 3;
+    // A peer whose upload queue is full is asked again after a growing pause, and dropped after this many refusals in a row
+    static final int MAX_BUSY_RETRIES = 5;
+    private static final long BUSY_BACKOFF_MILLIS = 2000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private final DownloadStrategy single;
+    private final int chunkSize;
+    private final Path downloadDirectory;
+    private final ThroughputSeries throughput;
+    private final BandwidthLimits bandwidth;
+
+    public MultiSourceDownload(DownloadStrategy single, int chunkSize, Path downloadDirectory, ThroughputSeries throughput) {
+        this(single, chunkSize, downloadDirectory, throughput, new BandwidthLimits());
+    }
+
+    public MultiSourceDownload(DownloadStrategy single, int chunkSize, Path downloadDirectory, ThroughputSeries throughput,
+                               BandwidthLimits bandwidth) {
+        this.single = single;
+        this.chunkSize = Math.min(chunkSize, PieceHashes.PIECE_SIZE);
+        this.downloadDirectory = downloadDirectory;
+        this.throughput = throughput;
+        this.bandwidth = bandwidth;
+    }
+
+    @Override
+    public void download(String peerAddress, String fileName) throws IOException {
+        single.download(peerAddress, fileName);
+    }
+
+    @Override
+    public void download(List<SearchResult.Source> sources, String fileName) throws IOException {
+        List<Peer> peers = probe(sources);
+        if (peers.size() < 2) {
+            SearchResult.Source source = peers.isEmpty() ? sources.get(0) : peers.get(0).source;
+            single.download(source.getAddress(), source.getFileName());
+            if (!source.getFileName().equals(fileName)) {
+                Files.move(downloadDirectory.resolve(source.getFileName()), downloadDirectory.resolve(fileName),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            return;
+        }
+        long size = peers.get(0).size;
+        String hash = peers.get(0).hash;
+        PieceHashes pieces = requestPieces(peers, fileName, size);
+        int pieceSize = pieces != null ? pieces.pieceSize : PieceHashes.PIECE_SIZE;
+
+        Path destinationPath = downloadDirectory.resolve(fileName);
+        Path partPath = PartialDownload.partPath(destinationPath);
+        Path metaPath = PartialDownload.metaPath(destinationPath);
+        long partLength = Files.exists(partPath) ? Files.size(partPath) : 0;
+        PartialDownload state = PartialDownload.read(metaPath);
+        if (state == null || !state.matches(size, hash)) {
+            Files.deleteIfExists(partPath);
+            partLength = 0;
+            state = new PartialDownload(size, hash, true);
+        } else {
+            state = state.segmented(partLength);
+        }
+        state.write(metaPath);
+
+        long segmentPieces = Math.max(1, Math.min(MAX_SEGMENT / pieceSize, size / pieceSize / (peers.size() * 4L)));
+        long segmentSize = segmentPieces * pieceSize;
+        Job job = new Job(state, metaPath, pieceSize, peers.size());
+        long remaining = 0;
+        for (long[] range : state.missing(partLength)) {
+            // A piece only partly on disk is fetched again whole so it can be verified
+            for (long start = range[0] - range[0] % pieceSize; start < range[1]; start += segmentSize) {
+                job.queue.add(new Segment(start, Math.min(range[1], start + segmentSize)));
+            }
+            remaining += range[1] - range[0];
+        }
+        System.out.println((remaining < size ? "Resuming " + fileName + " with " + remaining + " of " + size + " bytes left"
+                : "Downloading " + fileName) + " from " + peers.size() + " peers...");
+
+        try (FileChannel file = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            List<Thread> workers = new ArrayList<>();
+            for (Peer peer : peers) {
+                Thread worker = new Thread(() -> work(job, peer, file, pieces), "download-" + peer.source.getUsername());
+                workers.add(worker);
+                worker.start();
+            }
+            try {
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Thread worker : workers) {
+                    worker.interrupt();
+                }
+                throw new IOException("Download of " + fileName + " was interrupted, it can be resumed");
+            } finally {
+                state.write(metaPath);
+            }
+        }
+        System.out.println("Download stream finished.");
+        for (Peer peer : peers) {
+            System.out.printf("  %-20s %,d bytes%s%s%n", peer.source.getUsername(), peer.bytes,
+                    peer.corruptPieces > 0 ? ", " + peer.corruptPieces + " corrupt piece(s)" : "", peer.failed ? " (failed)" : "");
+        }
+
+        if (!state.missing(size).isEmpty()) {
+            throw new IOException("No peer could supply the rest of " + fileName + ", the download can be resumed");
+        }
+        if (Files.size(partPath) != size || !LocalFileHandler.sha256Hex(partPath).equals(hash)) {
+            Files.deleteIfExists(partPath);
+            Files.deleteIfExists(metaPath);
+            throw new IOException("Downloaded " + fileName + " does not match the peers' size and hash, discarded it");
+        }
+        Files.move(partPath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(metaPath);
+    }
+
+    // Asks each source for an empty range to learn the size and hash, keeping the peers that agree with the first one
+    private List<Peer> probe(List<SearchResult.Source> sources) {
+        List<Peer> peers = new ArrayList<>();
+        for (SearchResult.Source source : sources) {
+            Peer peer;
+            try {
+                peer = new Peer(source);
+            } catch (IOException e) {
+                System.err.println("Skipping " + source.getUsername() + ": " + e.getMessage());
+                continue;
+            }
+            try (Socket socket = peer.connect()) {
+                ChunkedDownload.Range range = ChunkedDownload.requestRange(socket, socket.getInputStream(), source.getFileName(), 0, 0);
+                if (range == null) {
+                    System.err.println("Skipping " + source.getUsername() + ": it does not support ranges");
+                    continue;
+                }
+                peer.size = range.size;
+                peer.hash = range.hash;
+            } catch (IOException e) {
+                System.err.println("Skipping " + source.getUsername() + ": " + e.getMessage());
+                continue;
+            }
+            if (!peers.isEmpty() && (peer.size != peers.get(0).size || !peer.hash.equals(peers.get(0).hash))) {
+                System.err.println("Skipping " + source.getUsername() + ": it has different contents for " + source.getFileName());
+                continue;
+            }
+            peers.add(peer);
+        }
+        return peers;
+    }
+
+    // Piece hashes from the first peer that has them, checked against the size all peers agreed on
+    private PieceHashes requestPieces(List<Peer> peers, String fileName, long size) {
+        for (Peer peer : peers) {
+            try (Socket socket = peer.connect()) {
+                PieceHashes pieces = PieceHashes.request(socket, peer.source.getFileName());
+                if (pieces != null && pieces.size == size) return pieces;
+            } catch (IOException e) {
+                System.err.println("No piece hashes from " + peer.source.getUsername() + ": " + e.getMessage());
+            }
+        }
+        System.err.println("Warning: No peer sent piece hashes for " + fileName + ", pieces are not verified");
+        return null;
+    }
+
+    private void work(Job job, Peer peer, FileChannel file, PieceHashes pieces) {
+        Segment segment;
+        int refusals = 0;
+        while ((segment = job.next(peer)) != null) {
+            try {
+                fetch(job, peer, segment, file, pieces);
+                job.finished(segment);
+                refusals = 0;
+            } catch (PeerBusyException e) {
+                job.returned(segment);
+                if (++refusals > MAX_BUSY_RETRIES) {
+                    System.err.println("Giving up on " + peer.source.getUsername() + ": " + e.getMessage());
+                    job.dropped(peer);
+                    return;
+                }
+                // The other peers take the segment meanwhile
+                try {
+                    Thread.sleep(BUSY_BACKOFF_MILLIS * refusals);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("Download from " + peer.source.getUsername() + " failed: " + e.getMessage());
+                job.failed(segment, peer);
+                return;
+            }
+        }
+    }
+
+    private void fetch(Job job, Peer peer, Segment segment, FileChannel file, PieceHashes pieces) throws IOException {
+        long position = segment.position;
+        PieceHashes.Verifier verifier = new PieceHashes.Verifier(pieces, job.pieceSize, peer.size, position);
+        PieceHashes.PieceListener listener = (start, end, valid) -> {
+            if (!job.pieceReceived(peer, start, end, valid)) {
+                throw new IOException("Dropping " + peer.source.getUsername() + " after " + peer.corruptPieces + " corrupt pieces");
+            }
+        };
+        try (Socket socket = peer.connect()) {
+            InputStream in = peer.requestRange(socket, position, segment.end - position);
+            TokenBucket bucket = bandwidth.downloadConnection();
+            byte[] buffer = new byte[chunkSize];
+            long started = System.nanoTime();
+            long remaining;
+            // The end can move closer while we read when another peer takes over the back of the segment
+            while ((remaining = job.remaining(segment)) > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(bucket.quantum(buffer.length), remaining));
+                if (bytesRead == -1) {
+                    throw new IOException("Connection closed at byte " + position);
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                long writeAt = position;
+                while (data.hasRemaining()) {
+                    writeAt += file.write(data, writeAt);
+                }
+                position += bytesRead;
+                long now = System.nanoTime();
+                job.progress(segment, peer, bytesRead, now - started);
+                started = now;
+                if (throughput != null) {
+                    throughput.record(bytesRead);
+                }
+                verifier.update(buffer, 0, bytesRead, listener);
+                bucket.consume(bytesRead);
+            }
+        }
+    }
+
+    private static class Segment {
+        long position;
+        long end;
+        Peer owner;
+        // The peer this piece failed verification from, which gets it again only when no one else is left
+        Peer corruptedBy;
+
+        Segment(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+    }
+
+    private class Peer {
+        final SearchResult.Source source;
+        final String host;
+        final int port;
+        long size;
+        String hash;
+        // Bytes received and time spent receiving them, guarded by the job
+        long bytes;
+        long nanos;
+        int corruptPieces;
+        boolean failed;
+
+        Peer(SearchResult.Source source) throws IOException {
+            this.source = source;
+            String[] parts = source.getAddress().split(":", 2);
+            try {
+                if (parts.length != 2) throw new NumberFormatException();
+                this.host = parts[0];
+                this.port = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Could not parse peer address: " + source.getAddress());
+            }
+        }
+
+        double rate() {
+            return nanos == 0 ? 0 : (double) bytes / nanos;
+        }
+
+        Socket connect() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        }
+
+        // Requests a range and checks the header against what this peer announced before
+        InputStream requestRange(Socket socket, long offset, long length) throws IOException {
+            InputStream in = new BufferedInputStream(socket.getInputStream(), chunkSize);
+            ChunkedDownload.Range range = ChunkedDownload.requestRange(socket, in, source.getFileName(), offset, length);
+            if (range == null || range.length != length || range.size != size || !range.hash.equals(hash)) {
+                throw new IOException("Peer's copy of " + source.getFileName() + " has changed");
+            }
+            return in;
+        }
+    }
+
+    private static class Job {
+        final PartialDownload state;
+        final Path metaPath;
+        final int pieceSize;
+        final Deque<Segment> queue = new ArrayDeque<>();
+        final List<Segment> active = new ArrayList<>();
+        int livePeers;
+
+        Job(PartialDownload state, Path metaPath, int pieceSize, int peers) {
+            this.state = state;
+            this.metaPath = metaPath;
+            this.pieceSize = pieceSize;
+            this.livePeers = peers;
+        }
+
+        // The next segment for peer: a queued one, else the back of the slowest active one. Waits while
+        // other peers still hold segments that could fail back onto the queue; null when all is done.
+        synchronized Segment next(Peer peer) {
+            while (true) {
+                Segment segment = poll(peer);
+                if (segment == null) segment = split(peer);
+                if (segment != null) {
+                    segment.owner = peer;
+                    active.add(segment);
+                    return segment;
+                }
+                if (active.isEmpty() && queue.isEmpty()) return null;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+
+        private Segment poll(Peer peer) {
+            for (Iterator<Segment> it = queue.iterator(); it.hasNext(); ) {
+                Segment segment = it.next();
+                if (segment.corruptedBy != peer || livePeers == 1) {
+                    it.remove();
+                    return segment;
+                }
+            }
+            return null;
+        }
+
+        private Segment split(Peer thief) {
+            Segment slowest = null;
+            double slowestFinish = 0;
+            for (Segment segment : active) {
+                double rate = segment.owner.rate();
+                double finish = rate == 0 ? Double.MAX_VALUE : (segment.end - segment.position) / rate;
+                if (segment.end - firstSplit(segment) >= pieceSize && (slowest == null || finish > slowestFinish)) {
+                    slowest = segment;
+                    slowestFinish = finish;
+                }
+            }
+            if (slowest == null) return null;
+
+            long remaining = slowest.end - slowest.position;
+            double ownerRate = slowest.owner.rate();
+            double thiefRate = thief.rate();
+            // Give the owner the share it should finish in the same time the thief takes for the rest
+            double ownerShare = ownerRate == 0 || thiefRate == 0 ? 0.5 : ownerRate / (ownerRate + thiefRate);
+            long at = slowest.position + (long) (remaining * ownerShare);
+            at = Math.max(firstSplit(slowest), Math.min(slowest.end - 1, at + pieceSize - 1) / pieceSize * pieceSize);
+            // Not worth a new connection when the thief would not be done sooner than the owner
+            if (thiefRate > 0 && ownerRate > 0 && (slowest.end - at) / thiefRate >= remaining / ownerRate) return null;
+
+            Segment back = new Segment(at, slowest.end);
+            slowest.end = at;
+            return back;
+        }
+
+        // The owner may be reading anywhere in its current piece, so a split goes after it
+        private long firstSplit(Segment segment) {
+            return (segment.position / pieceSize + 1) * pieceSize;
+        }
+
+        synchronized long remaining(Segment segment) {
+            return segment.end - segment.position;
+        }
+
+        synchronized void progress(Segment segment, Peer peer, long bytes, long nanos) {
+            segment.position += bytes;
+            peer.bytes += bytes;
+            peer.nanos += nanos;
+        }
+
+        // Records a verified piece, or queues a corrupt one again; false once peer has sent too many bad ones
+        synchronized boolean pieceReceived(Peer peer, long start, long end, boolean valid) {
+            if (valid) {
+                state.markDone(start, end);
+                state.checkpoint(metaPath);
+                return true;
+            }
+            System.err.println("Piece at byte " + start + " from " + peer.source.getUsername() + " failed verification");
+            Segment again = new Segment(start, end);
+            again.corruptedBy = peer;
+            queue.addFirst(again);
+            notifyAll();
+            return ++peer.corruptPieces <= MAX_CORRUPT_PIECES;
+        }
+
+        synchronized void finished(Segment segment) {
+            active.remove(segment);
+            notifyAll();
+        }
+
+        // Puts a segment the peer could not start back on the queue, the peer stays in the download
+        synchronized void returned(Segment segment) {
+            active.remove(segment);
+            queue.addFirst(segment);
+            notifyAll();
+        }
+
+        synchronized void dropped(Peer peer) {
+            peer.failed = true;
+            livePeers--;
+            notifyAll();
+        }
+
+        synchronized void failed(Segment segment, Peer peer) {
+            active.remove(segment);
+            dropped(peer);
+            // Verified pieces are already recorded, the rest starts again at the piece being read
+            long from = segment.position - segment.position % pieceSize;
+            if (from < segment.end) {
+                queue.addFirst(new Segment(from, segment.end));
+            }
+            notifyAll();
+        }
+    }
+}
@@ -13,11 +13,13 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class P2PClientUI extends JFrame {
-    private Transport serverTransport;
+    private ServerSession serverSession;
+    private PeerDirectoryMirror peerDirectory;
     private User loggedInUser;
     private FileHandler fileHandler;
     private DownloadStrategy downloadStrategy;
@@ -25,6 +27,10 @@ public class P2PClientUI extends JFrame {
     private PeerClient peerClient;
     private ExecutorService executorService = Executors.newCachedThreadPool();
     private ClientConfigurationService configService;
+    // Search result behind each row of the search dialog, by peer and file name, for multi-source downloads
+    private final Map<String, SearchResult> searchResultOf = new ConcurrentHashMap<>();
+    // Shared by the peer client's uploads and the download strategy, changed from the settings dialog
+    private final BandwidthLimits bandwidth = BandwidthLimits.fromSystemProperties();
 
     // UI Components
     private JPanel mainPanel;
@@ -58,7 +64,9 @@ public class P2PClientUI extends JFrame {
 
     private void connectToServer() {
         try {
-            serverTransport = new TCPTransport("localhost", 9090);
+            serverSession = new ServerSession(new TCPTransport("localhost", 9090));
+            serverSession.setUnsolicitedListener(this::handleServerNotice);
+            peerDirectory = new PeerDirectoryMirror(serverSession);
             configService = new ClientConfigurationService("client_config.csv");
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this,
@@ -69,6 +77,18 @@ public class P2PClientUI extends JFrame {
         }
     }
 
+    private void handleServerNotice(String line) {
+        if (line.startsWith("FORCE_DISCONNECT")) {
+            String message = line.length() > 17 ? line.substring(17) : "You have been disconnected by the server.";
+            SwingUtilities.invokeLater(() -> {
+                JOptionPane.showMessageDialog(this, message, "Disconnected", JOptionPane.WARNING_MESSAGE);
+                System.exit(0);
+            });
+        } else {
+            System.out.println("Server: " + line);
+        }
+    }
+
     private void showLoginPage() {
         JPanel loginPanel = new JPanel(new GridBagLayout());
         loginPanel.setBackground(new Color(245, 245, 245));
@@ -162,8 +182,7 @@ public class P2PClientUI extends JFrame {
             }
 
             try {
-                serverTransport.sendLine("LOGIN " + username + " " + password);
-                String response = serverTransport.readLine();
+                String response = serverSession.requestLine("LOGIN " + username + " " + password);
 
                 if (response != null && response.startsWith("LOGIN_SUCCESS")) {
                     String[] payload = response.substring(14).split(";", 4);
@@ -263,8 +282,7 @@ public class P2PClientUI extends JFrame {
             }
 
             try {
-                serverTransport.sendLine("SIGNUP " + username + " " + password);
-                String response = serverTransport.readLine();
+                String response = serverSession.requestLine("SIGNUP " + username + " " + password);
 
                 if ("SIGNUP_SUCCESS".equals(response)) {
                     // Ask for shared directory
@@ -345,7 +363,10 @@ public class P2PClientUI extends JFrame {
             System.out.println("DEBUG: Using ports - TCP: " + myPort + ", UDP: " + (myPort + 1));
 
             fileHandler = new LocalFileHandler(localSharedDirectory);
-            downloadStrategy = new ChunkedDownload(8192, fileHandler, userSharedPath);
+            ThroughputSeries downloadThroughput = loggedInUser.getDownloadStats().getThroughput();
+            downloadStrategy = new MultiSourceDownload(
+                    new ChunkedDownload(8192, fileHandler, userSharedPath, downloadThroughput, bandwidth),
+                    64 * 1024, userSharedPath, downloadThroughput, bandwidth);
 
             // Test the fileHandler immediately
             List<String> foundFiles = fileHandler.listSharedFiles();
@@ -354,8 +375,8 @@ public class P2PClientUI extends JFrame {
                 System.out.println("DEBUG: - " + file);
             }
 
-            peerClient = new PeerClient("localhost", 9090, myPort, fileHandler, downloadStrategy);
-            peerClient.setSessionContext(loggedInUser, serverTransport);
+            peerClient = new PeerClient("localhost", 9090, myPort, fileHandler, downloadStrategy, bandwidth);
+            peerClient.setSessionContext(loggedInUser, serverSession);
 
             // Start peer client in background
             executorService.submit(() -> {
@@ -412,6 +433,7 @@ public class P2PClientUI extends JFrame {
 
         if (loggedInUser.isAdmin()) {
             addDashboardButton(contentPanel, "Remove User", "Remove a user (Admin only)", e -> showRemoveUserDialog());
+            addDashboardButton(contentPanel, "Server Metrics", "Live server counters (Admin only)", e -> showServerMetricsDialog());
         }
 
         dashboardPanel.add(contentPanel, BorderLayout.CENTER);
@@ -521,13 +543,26 @@ public class P2PClientUI extends JFrame {
         dialog.setVisible(true);
     }
 
+    // The chosen peer first, then the other peers the search found with the same file
+    private List<SearchResult.Source> downloadSources(String peerUsername, String peerAddress, String fileName) {
+        List<SearchResult.Source> sources = new ArrayList<>();
+        sources.add(new SearchResult.Source(peerUsername, peerAddress, fileName));
+        SearchResult result = searchResultOf.get(peerUsername + "/" + fileName);
+        if (result != null) {
+            for (SearchResult.Source source : result.getSources()) {
+                if (!source.getUsername().equals(peerUsername)) {
+                    sources.add(source);
+                }
+            }
+        }
+        return sources;
+    }
+
     private void downloadFileFromPeer(String fileName, String peerUsername, JDialog parentDialog) {
         executorService.submit(() -> {
             try {
-                // Get peer address directly from LIST_PEERS instead of searching again
-                serverTransport.sendLine("LIST_PEERS");
-                String response = serverTransport.readLine();
-                Map<String, String> onlinePeers = parsePeerInfoResponse(response);
+                // Get peer address from the peer list mirror instead of searching again
+                Map<String, String> onlinePeers = peerDirectory.refresh();
 
                 String peerAddress = onlinePeers.get(peerUsername);
 
@@ -567,7 +602,7 @@ public class P2PClientUI extends JFrame {
                                         executorService.submit(() -> {
                                             try {
                                                 System.out.println("DEBUG: Downloading from address: " + peerAddress);
-                                                downloadStrategy.download(peerAddress, fileName);
+                                                downloadStrategy.download(downloadSources(peerUsername, peerAddress, fileName), fileName);
 
                                                 if (fileSize > 0) {
                                                     loggedInUser.getDownloadStats().addFile();
@@ -575,7 +610,7 @@ public class P2PClientUI extends JFrame {
                                                     updateRemoteStats();
                                                 }
 
-                                                serverTransport.sendLine("SHARE " + fileName);
+                                                peerClient.shareFile(fileName);
 
                                                 SwingUtilities.invokeLater(() -> {
                                                     progressDialog.dispose();
@@ -644,9 +679,7 @@ public class P2PClientUI extends JFrame {
         // Load peers
         executorService.submit(() -> {
             try {
-                serverTransport.sendLine("LIST_PEERS");
-                String response = serverTransport.readLine();
-                Map<String, String> onlinePeers = parsePeerInfoResponse(response);
+                Map<String, String> onlinePeers = peerDirectory.refresh();
                 onlinePeers.remove(loggedInUser.getUsername());
 
                 SwingUtilities.invokeLater(() -> {
@@ -699,9 +732,7 @@ public class P2PClientUI extends JFrame {
     private void loadPeerFiles(String peerUsername, DefaultTableModel tableModel, JDialog parentDialog) {
         executorService.submit(() -> {
             try {
-                serverTransport.sendLine("LIST_PEERS");
-                String response = serverTransport.readLine();
-                Map<String, String> onlinePeers = parsePeerInfoResponse(response);
+                Map<String, String> onlinePeers = peerDirectory.refresh();
 
                 if (onlinePeers.containsKey(peerUsername)) {
                     String peerAddress = onlinePeers.get(peerUsername);
@@ -750,9 +781,7 @@ public class P2PClientUI extends JFrame {
 
         executorService.submit(() -> {
             try {
-                serverTransport.sendLine("LIST_PEERS");
-                String response = serverTransport.readLine();
-                Map<String, String> onlinePeers = parsePeerInfoResponse(response);
+                Map<String, String> onlinePeers = peerDirectory.refresh();
                 onlinePeers.remove(loggedInUser.getUsername());
 
                 SwingUtilities.invokeLater(() -> {
@@ -782,7 +811,7 @@ public class P2PClientUI extends JFrame {
 
     private void showMyStats() {
         JDialog dialog = new JDialog(this, "My Statistics", true);
-        dialog.setSize(400, 350);
+        dialog.setSize(520, 500);
         dialog.setLocationRelativeTo(this);
         dialog.setLayout(new GridBagLayout());
         GridBagConstraints gbc = new GridBagConstraints();
@@ -819,12 +848,64 @@ public class P2PClientUI extends JFrame {
 
         JLabel uploadBytesLabel = new JLabel("Total Bytes Uploaded: " +
                 formatFileSize(loggedInUser.getUploadStats().getTotalBytes()));
-        gbc.gridx = 0; gbc.gridy = 6; gbc.gridwidth = 2; gbc.insets = new Insets(5, 40, 20, 20);
+        gbc.gridx = 0; gbc.gridy = 6; gbc.gridwidth = 2; gbc.insets = new Insets(5, 40, 10, 20);
         dialog.add(uploadBytesLabel, gbc);
 
+        // Rates: this session's transfers right away, the server's history once RATES answers
+        JLabel ratesLabel = new JLabel("Transfer Rates");
+        ratesLabel.setFont(new Font("Arial", Font.BOLD, 14));
+        gbc.gridx = 0; gbc.gridy = 7; gbc.gridwidth = 2; gbc.insets = new Insets(10, 20, 5, 20);
+        dialog.add(ratesLabel, gbc);
+
+        JLabel downloadRateLabel = new JLabel("Download: " + ThroughputSeries.formatSummary(loggedInUser.getDownloadStats().getThroughput().summary()));
+        gbc.gridx = 0; gbc.gridy = 8; gbc.gridwidth = 2; gbc.insets = new Insets(5, 40, 5, 20);
+        dialog.add(downloadRateLabel, gbc);
+
+        JLabel uploadRateLabel = new JLabel("Upload: " + ThroughputSeries.formatSummary(loggedInUser.getUploadStats().getThroughput().summary()));
+        gbc.gridx = 0; gbc.gridy = 9; gbc.gridwidth = 2; gbc.insets = new Insets(5, 40, 20, 20);
+        dialog.add(uploadRateLabel, gbc);
+
+        executorService.submit(() -> {
+            try {
+                String[] rates = ThroughputSeries.parseRatesReply(serverSession.requestLine("RATES"));
+                if (rates != null) {
+                    SwingUtilities.invokeLater(() -> {
+                        downloadRateLabel.setText("Download: " + ThroughputSeries.formatSummary(rates[0]));
+                        uploadRateLabel.setText("Upload: " + ThroughputSeries.formatSummary(rates[1]));
+                    });
+                }
+            } catch (IOException e) {
+                System.err.println("Could not load transfer rates: " + e.getMessage());
+            }
+        });
+
+        if (loggedInUser.isAdmin()) {
+            JLabel topLabel = new JLabel("Top Sharers");
+            topLabel.setFont(new Font("Arial", Font.BOLD, 14));
+            gbc.gridx = 0; gbc.gridy = 10; gbc.gridwidth = 2; gbc.insets = new Insets(10, 20, 5, 20);
+            dialog.add(topLabel, gbc);
+
+            JLabel topListLabel = new JLabel("Loading...");
+            gbc.gridx = 0; gbc.gridy = 11; gbc.gridwidth = 2; gbc.insets = new Insets(5, 40, 20, 20);
+            dialog.add(topListLabel, gbc);
+            dialog.setSize(520, 720);
+
+            executorService.submit(() -> {
+                try {
+                    String uploaders = serverSession.requestLine("TOP uploaders 5");
+                    String downloaders = serverSession.requestLine("TOP downloaders 5");
+                    String text = "<html><b>Uploaders</b><br>" + formatTop(uploaders)
+                            + "<br><b>Downloaders</b><br>" + formatTop(downloaders) + "</html>";
+                    SwingUtilities.invokeLater(() -> topListLabel.setText(text));
+                } catch (IOException e) {
+                    SwingUtilities.invokeLater(() -> topListLabel.setText("Could not load: " + e.getMessage()));
+                }
+            });
+        }
+
         JButton closeBtn = new JButton("Close");
         closeBtn.addActionListener(e -> dialog.dispose());
-        gbc.gridx = 0; gbc.gridy = 7; gbc.gridwidth = 2; gbc.insets = new Insets(10, 20, 20, 20);
+        gbc.gridx = 0; gbc.gridy = 12; gbc.gridwidth = 2; gbc.insets = new Insets(10, 20, 20, 20);
         dialog.add(closeBtn, gbc);
 
         dialog.setVisible(true);
@@ -910,7 +991,7 @@ public class P2PClientUI extends JFrame {
                     loggedInUser.getUploadStats().addBytes(file.length());
 
                     // Share with network
-                    serverTransport.sendLine("SHARE " + file.getName());
+                    peerClient.shareFile(file.getName());
 
                     successCount++;
                 } catch (IOException e) {
@@ -990,14 +1071,11 @@ public class P2PClientUI extends JFrame {
                 executorService.submit(() -> {
                     try {
                         // 1. Send remove command to server
-                        serverTransport.sendLine("REMOVE_USER " + usernameToRemove);
-                        String response = serverTransport.readLine();
+                        String response = serverSession.requestLine("REMOVE_USER " + usernameToRemove);
 
                         if ("REMOVE_SUCCESS".equals(response)) {
                             // 2. Get list of online peers to find the kicked user
-                            serverTransport.sendLine("LIST_PEERS");
-                            String peersResponse = serverTransport.readLine();
-                            Map<String, String> onlinePeers = parsePeerInfoResponse(peersResponse);
+                            Map<String, String> onlinePeers = peerDirectory.refresh();
 
                             String finalMessage = "User '" + usernameToRemove + "' has been removed from the server.";
 
@@ -1048,9 +1126,57 @@ public class P2PClientUI extends JFrame {
         dialog.setVisible(true);
     }
 
+    private void showServerMetricsDialog() {
+        JDialog dialog = new JDialog(this, "Server Metrics", true);
+        dialog.setSize(650, 450);
+        dialog.setLocationRelativeTo(this);
+        dialog.setLayout(new BorderLayout());
+
+        String[] columns = {"Metric", "Value"};
+        DefaultTableModel tableModel = new DefaultTableModel(columns, 0);
+        JTable metricsTable = new JTable(tableModel);
+        metricsTable.getColumnModel().getColumn(0).setPreferredWidth(180);
+        metricsTable.getColumnModel().getColumn(1).setPreferredWidth(450);
+        dialog.add(new JScrollPane(metricsTable), BorderLayout.CENTER);
+
+        Runnable refresh = () -> executorService.submit(() -> {
+            try {
+                String response = serverSession.requestLine("METRICS");
+                SwingUtilities.invokeLater(() -> {
+                    tableModel.setRowCount(0);
+                    if (response == null || !response.startsWith("METRICS ")) {
+                        tableModel.addRow(new Object[]{"Error", response != null ? response : "No response"});
+                        return;
+                    }
+                    for (String pair : response.substring(8).split(";")) {
+                        String[] parts = pair.split("=", 2);
+                        if (parts.length == 2) {
+                            tableModel.addRow(new Object[]{parts[0], parts[1]});
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() ->
+                        JOptionPane.showMessageDialog(dialog, "Error loading metrics: " + e.getMessage()));
+            }
+        });
+        refresh.run();
+
+        JButton refreshBtn = new JButton("Refresh");
+        refreshBtn.addActionListener(e -> refresh.run());
+        JButton closeBtn = new JButton("Close");
+        closeBtn.addActionListener(e -> dialog.dispose());
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.add(refreshBtn);
+        buttonPanel.add(closeBtn);
+        dialog.add(buttonPanel, BorderLayout.SOUTH);
+
+        dialog.setVisible(true);
+    }
+
     private void showSettingsDialog() {
         JDialog dialog = new JDialog(this, "Settings", true);
-        dialog.setSize(400, 300);
+        dialog.setSize(400, 350);
         dialog.setLocationRelativeTo(this);
         dialog.setLayout(new GridBagLayout());
         GridBagConstraints gbc = new GridBagConstraints();
@@ -1066,22 +1192,28 @@ public class P2PClientUI extends JFrame {
         gbc.gridx = 0; gbc.gridy = 1; gbc.insets = new Insets(10, 20, 5, 20);
         dialog.add(changePasswordBtn, gbc);
 
+        JButton bandwidthBtn = new JButton("Bandwidth Limits");
+        bandwidthBtn.setPreferredSize(new Dimension(200, 35));
+        bandwidthBtn.setForeground(Color.black);
+        gbc.gridx = 0; gbc.gridy = 2; gbc.insets = new Insets(5, 20, 5, 20);
+        dialog.add(bandwidthBtn, gbc);
+
         JButton deleteAccountBtn = new JButton("Delete Account");
         deleteAccountBtn.setPreferredSize(new Dimension(200, 35));
         deleteAccountBtn.setBackground(Color.RED);
         deleteAccountBtn.setForeground(Color.RED);
-        gbc.gridx = 0; gbc.gridy = 2; gbc.insets = new Insets(5, 20, 5, 20);
+        gbc.gridx = 0; gbc.gridy = 3; gbc.insets = new Insets(5, 20, 5, 20);
         dialog.add(deleteAccountBtn, gbc);
 
         JButton logoutBtn = new JButton("Logout");
         logoutBtn.setPreferredSize(new Dimension(200, 35));
         logoutBtn.setBackground(Color.BLACK);
         logoutBtn.setForeground(Color.black);
-        gbc.gridx = 0; gbc.gridy = 3; gbc.insets = new Insets(5, 20, 20, 20);
+        gbc.gridx = 0; gbc.gridy = 4; gbc.insets = new Insets(5, 20, 20, 20);
         dialog.add(logoutBtn, gbc);
 
         JButton closeBtn = new JButton("Close");
-        gbc.gridx = 0; gbc.gridy = 4; gbc.insets = new Insets(10, 20, 20, 20);
+        gbc.gridx = 0; gbc.gridy = 5; gbc.insets = new Insets(10, 20, 20, 20);
         dialog.add(closeBtn, gbc);
 
         changePasswordBtn.addActionListener(e -> {
@@ -1089,6 +1221,11 @@ public class P2PClientUI extends JFrame {
             showChangePasswordDialog();
         });
 
+        bandwidthBtn.addActionListener(e -> {
+            dialog.dispose();
+            showBandwidthDialog();
+        });
+
         deleteAccountBtn.addActionListener(e -> {
             dialog.dispose();
             showDeleteAccountDialog();
@@ -1104,6 +1241,59 @@ public class P2PClientUI extends JFrame {
         dialog.setVisible(true);
     }
 
+    // Limits in KB/s, 0 for unlimited; applied to running transfers as soon as they are saved
+    private void showBandwidthDialog() {
+        JDialog dialog = new JDialog(this, "Bandwidth Limits", true);
+        dialog.setSize(420, 280);
+        dialog.setLocationRelativeTo(this);
+        dialog.setLayout(new GridBagLayout());
+        GridBagConstraints gbc = new GridBagConstraints();
+
+        JLabel hintLabel = new JLabel("KB/s, 0 for unlimited");
+        gbc.gridx = 0; gbc.gridy = 0; gbc.gridwidth = 2; gbc.insets = new Insets(20, 20, 10, 20);
+        dialog.add(hintLabel, gbc);
+        gbc.gridwidth = 1;
+
+        String[] labels = {"Total Upload:", "Upload per Connection:", "Total Download:", "Download per Connection:"};
+        long[] limits = {bandwidth.getUploadLimit(), bandwidth.getUploadConnectionLimit(),
+                bandwidth.getDownloadLimit(), bandwidth.getDownloadConnectionLimit()};
+        JSpinner[] spinners = new JSpinner[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            gbc.gridx = 0; gbc.gridy = i + 1; gbc.insets = new Insets(5, 20, 5, 5);
+            dialog.add(new JLabel(labels[i]), gbc);
+
+            spinners[i] = new JSpinner(new SpinnerNumberModel(limits[i] / 1024, 0L, 10L * 1024 * 1024, 64L));
+            spinners[i].setPreferredSize(new Dimension(120, 25));
+            gbc.gridx = 1; gbc.gridy = i + 1; gbc.insets = new Insets(5, 5, 5, 20);
+            dialog.add(spinners[i], gbc);
+        }
+
+        JPanel buttonPanel = new JPanel();
+        JButton saveBtn = new JButton("Save");
+        JButton cancelBtn = new JButton("Cancel");
+        buttonPanel.add(saveBtn);
+        buttonPanel.add(cancelBtn);
+
+        gbc.gridx = 0; gbc.gridy = labels.length + 1; gbc.gridwidth = 2; gbc.insets = new Insets(10, 20, 20, 20);
+        dialog.add(buttonPanel, gbc);
+
+        saveBtn.addActionListener(e -> {
+            long[] kilobytes = new long[spinners.length];
+            for (int i = 0; i < spinners.length; i++) {
+                kilobytes[i] = ((Number) spinners[i].getValue()).longValue();
+            }
+            bandwidth.setUploadLimit(kilobytes[0] * 1024);
+            bandwidth.setUploadConnectionLimit(kilobytes[1] * 1024);
+            bandwidth.setDownloadLimit(kilobytes[2] * 1024);
+            bandwidth.setDownloadConnectionLimit(kilobytes[3] * 1024);
+            dialog.dispose();
+        });
+
+        cancelBtn.addActionListener(e -> dialog.dispose());
+
+        dialog.setVisible(true);
+    }
+
     private void showChangePasswordDialog() {
         JDialog dialog = new JDialog(this, "Change Password", true);
         dialog.setSize(400, 250);
@@ -1180,8 +1370,7 @@ public class P2PClientUI extends JFrame {
 
             executorService.submit(() -> {
                 try {
-                    serverTransport.sendLine("CHANGE_PASSWORD " + currentPassword + " " + newPassword);
-                    String response = serverTransport.readLine();
+                    String response = serverSession.requestLine("CHANGE_PASSWORD " + currentPassword + " " + newPassword);
 
                     SwingUtilities.invokeLater(() -> {
                         if ("CHANGE_PASSWORD_SUCCESS".equals(response)) {
@@ -1266,8 +1455,7 @@ public class P2PClientUI extends JFrame {
             if (finalConfirm == JOptionPane.YES_OPTION) {
                 executorService.submit(() -> {
                     try {
-                        serverTransport.sendLine("DELETE_ACCOUNT " + confirmUsername + " " + confirmPassword);
-                        String response = serverTransport.readLine();
+                        String response = serverSession.requestLine("DELETE_ACCOUNT " + confirmUsername + " " + confirmPassword);
 
                         SwingUtilities.invokeLater(() -> {
                             if ("DELETE_ACCOUNT_SUCCESS".equals(response)) {
@@ -1309,21 +1497,19 @@ public class P2PClientUI extends JFrame {
         executorService.submit(() -> {
             try {
                 // Search for the term directly
-                serverTransport.sendLine("SEARCH " + searchTerm);
-                String response = serverTransport.readLine();
+                String response = serverSession.requestLine("SEARCH " + searchTerm);
 
                 SwingUtilities.invokeLater(() -> {
                     tableModel.setRowCount(0);
-                    Map<String, Map<String, String>> searchResults = parseEnhancedSearchResponse(response);
+                    searchResultOf.clear();
+                    List<SearchResult> searchResults = SearchResult.parse(response);
 
                     int totalFiles = 0;
-                    for (Map.Entry<String, Map<String, String>> fileEntry : searchResults.entrySet()) {
-                        String fileName = fileEntry.getKey();
-                        Map<String, String> peersWithFile = fileEntry.getValue();
-
-                        for (Map.Entry<String, String> peerEntry : peersWithFile.entrySet()) {
-                            String peerUsername = peerEntry.getKey();
-                            String peerAddress = peerEntry.getValue();
+                    for (SearchResult result : searchResults) {
+                        for (SearchResult.Source source : result.getSources()) {
+                            String fileName = source.getFileName();
+                            String peerUsername = source.getUsername();
+                            String peerAddress = source.getAddress();
                             long fileSize = getPeerFileSize(peerAddress, fileName);
 
                             if (fileSize > -1) {
@@ -1336,6 +1522,7 @@ public class P2PClientUI extends JFrame {
                                         "Download"
                                 };
                                 tableModel.addRow(rowData);
+                                searchResultOf.put(peerUsername + "/" + fileName, result);
                                 totalFiles++;
                             }
                         }
@@ -1368,9 +1555,7 @@ public class P2PClientUI extends JFrame {
     }
     private void searchByPeerName(String searchTerm, DefaultTableModel tableModel) {
         try {
-            serverTransport.sendLine("LIST_PEERS");
-            String peersResponse = serverTransport.readLine();
-            Map<String, String> onlinePeers = parsePeerInfoResponse(peersResponse);
+            Map<String, String> onlinePeers = peerDirectory.refresh();
 
             // Find peers whose username contains the search term
             for (Map.Entry<String, String> peerEntry : onlinePeers.entrySet()) {
@@ -1438,68 +1623,7 @@ public class P2PClientUI extends JFrame {
         System.out.println("=== END DEBUG ===");
     }
 
-    // Enhanced helper method to parse the new search response format
-    private Map<String, Map<String, String>> parseEnhancedSearchResponse(String response) {
-        Map<String, Map<String, String>> results = new LinkedHashMap<>();
-
-        System.out.println("DEBUG: Client received search response: '" + response + "'");
-
-        if (response == null || response.trim().isEmpty()) {
-            System.out.println("DEBUG: Empty response received");
-            return results;
-        }
-
-        // Server sends format: filename1=peer1:address1,peer2:address2;filename2=peer3:address3
-        String[] fileEntries = response.split(";");
-        System.out.println("DEBUG: Split into " + fileEntries.length + " file entries");
-
-        for (String fileEntry : fileEntries) {
-            if (fileEntry.trim().isEmpty()) continue;
-
-            System.out.println("DEBUG: Processing file entry: '" + fileEntry + "'");
-
-            String[] fileParts = fileEntry.split("=", 2);
-            if (fileParts.length == 2) {
-                String fileName = fileParts[0];
-                String peerList = fileParts[1];
-
-                System.out.println("DEBUG: FileName: '" + fileName + "', PeerList: '" + peerList + "'");
-
-                Map<String, String> peersForFile = new LinkedHashMap<>();
-
-                String[] peers = peerList.split(",");
-                for (String peer : peers) {
-                    String[] peerParts = peer.split(":", 2);
-                    if (peerParts.length == 2) {
-                        String username = peerParts[0];
-                        String address = peerParts[1];
-                        peersForFile.put(username, address);
-                        System.out.println("DEBUG: Added peer - Username: '" + username + "', Address: '" + address + "'");
-                    }
-                }
-
-                results.put(fileName, peersForFile);
-            }
-        }
-
-        System.out.println("DEBUG: Final parsed results: " + results.size() + " files");
-        return results;
-    }
     // Helper methods from backend
-    private Map<String, String> parsePeerInfoResponse(String response) {
-        Map<String, String> peerInfoMap = new LinkedHashMap<>();
-        if (response == null || response.isEmpty()) return peerInfoMap;
-
-        String[] pairs = response.split(",");
-        for (String pair : pairs) {
-            String[] parts = pair.split("=", 2);
-            if (parts.length == 2) {
-                peerInfoMap.put(parts[0], parts[1]);
-            }
-        }
-        return peerInfoMap;
-    }
-
     private List<String> getFileListFromPeer(String peerAddress) {
         try {
             String[] parts = peerAddress.split(":");
@@ -1538,6 +1662,28 @@ public class P2PClientUI extends JFrame {
         }
     }
 
+    // "TOP board name=bytes;name=bytes" as numbered lines
+    private String formatTop(String response) {
+        String[] parts = response != null ? response.split(" ", 3) : new String[0];
+        if (parts.length < 2 || !parts[0].equals("TOP")) {
+            return response != null ? response : "No response";
+        }
+        if (parts.length == 2 || parts[2].isEmpty()) return "(nobody yet)";
+        StringBuilder sb = new StringBuilder();
+        String[] entries = parts[2].split(";");
+        for (int i = 0; i < entries.length; i++) {
+            String[] entry = entries[i].split("=", 2);
+            if (entry.length != 2) continue;
+            if (sb.length() > 0) sb.append("<br>");
+            try {
+                sb.append(i + 1).append(". ").append(entry[0]).append(" - ").append(formatFileSize(Long.parseLong(entry[1])));
+            } catch (NumberFormatException e) {
+                sb.append(i + 1).append(". ").append(entries[i]);
+            }
+        }
+        return sb.toString();
+    }
+
     private String formatFileSize(long size) {
         if (size <= 0) return "0 B";
         final String[] units = {"B", "KB", "MB", "GB", "TB"};
@@ -1568,11 +1714,10 @@ public class P2PClientUI extends JFrame {
         }
     }
 
+    // Sends only what changed since the last report, so concurrent transfers add up on the server
     private void updateRemoteStats() {
         try {
-            String downloadStatsCsv = loggedInUser.getDownloadStats().toCsvString();
-            String uploadStatsCsv = loggedInUser.getUploadStats().toCsvString();
-            serverTransport.sendLine("UPDATE_STATS " + downloadStatsCsv + " " + uploadStatsCsv);
+            serverSession.sendStatsDelta(loggedInUser);
         } catch (IOException e) {
             System.err.println("Warning: Could not update stats with server: " + e.getMessage());
         }
@@ -1580,13 +1725,16 @@ public class P2PClientUI extends JFrame {
 
     private void cleanup() {
         try {
-            if (serverTransport != null) {
-                serverTransport.sendLine("UNREGISTER");
-                serverTransport.close();
+            if (serverSession != null) {
+                serverSession.send("UNREGISTER");
+                serverSession.close();
             }
             if (executorService != null && !executorService.isShutdown()) {
                 executorService.shutdown();
             }
+            if (configService != null) {
+                configService.close();
+            }
         } catch (IOException e) {
             System.err.println("Error during cleanup: " + e.getMessage());
         }
@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ The name.part.meta sidecar of an unfinished download: the size and SHA-256 the peer announced and,
+ for a download fetched in segments, the byte ranges already written to name.part. A sequential
+ download keeps no ranges; everything up to the length of the .part file is there.
+ */
+class PartialDownload {
+
+    static final String PART_SUFFIX = ".part";
+    static final String META_SUFFIX = ".part.meta";
+    private static final long CHECKPOINT_NANOS = 1_000_000_000L;
+
+    final long size;
+    final String hash;
+    // start -> end of the ranges on disk, merged; null for a sequential download
+    private final TreeMap<Long, Long> done;
+    private long lastWrite = System.nanoTime();
+
+    PartialDownload(long size, String hash, boolean segmented) {
+        this.size = size;
+        this.hash = hash;
+        this.done = segmented ? new TreeMap<>() : null;
+    }
+
+    static Path partPath(Path destination) {
+        return destination.resolveSibling(destination.getFileName() + PART_SUFFIX);
+    }
+
+    static Path metaPath(Path destination) {
+        return destination.resolveSibling(destination.getFileName() + META_SUFFIX);
+    }
+
+    // Transfer artifacts that must not be shared while a download is in progress
+    static boolean isPartialFile(String fileName) {
+        return fileName.endsWith(PART_SUFFIX) || fileName.endsWith(META_SUFFIX)
+                || fileName.endsWith(META_SUFFIX + ".tmp");
+    }
+
+    boolean matches(long size, String hash) {
+        return this.size == size && this.hash.equals(hash);
+    }
+
+    /**
+     Bytes present from the start of the file, given the current length of the .part file
+     */
+    synchronized long contiguousLength(long partLength) {
+        long length = Math.min(partLength, size);
+        if (done == null) return length;
+        Long first = done.get(0L);
+        return first == null ? 0 : Math.min(first, length);
+    }
+
+    /**
+     The same download as segmented ranges, so a sequential partial can be continued in segments
+     */
+    synchronized PartialDownload segmented(long partLength) {
+        if (done != null) return this;
+        PartialDownload segmented = new PartialDownload(size, hash, true);
+        segmented.markDone(0, Math.min(partLength, size));
+        return segmented;
+    }
+
+    synchronized void markDone(long start, long end) {
+        if (end <= start) return;
+        Map.Entry<Long, Long> before = done.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = done.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            done.remove(next.getKey());
+        }
+        done.put(start, end);
+    }
+
+    /**
+     {start, end} of every range still to fetch, in file order
+     */
+    synchronized List<long[]> missing(long partLength) {
+        List<long[]> missing = new ArrayList<>();
+        if (done == null) {
+            long length = contiguousLength(partLength);
+            if (length < size) missing.add(new long[]{length, size});
+            return missing;
+        }
+        long position = 0;
+        for (Map.Entry<Long, Long> range : done.entrySet()) {
+            if (range.getKey() > position) missing.add(new long[]{position, Math.min(range.getKey(), size)});
+            position = Math.max(position, range.getValue());
+        }
+        if (position < size) missing.add(new long[]{position, size});
+        return missing;
+    }
+
+    static PartialDownload read(Path metaPath) {
+        if (!Files.exists(metaPath)) return null;
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(metaPath, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+            String size = properties.getProperty("size");
+            String hash = properties.getProperty("sha256");
+            if (size == null || hash == null) throw new IOException("missing size or sha256");
+            String ranges = properties.getProperty("done");
+            PartialDownload state = new PartialDownload(Long.parseLong(size), hash, ranges != null);
+            if (ranges != null && !ranges.isEmpty()) {
+                for (String range : ranges.split(",")) {
+                    String[] bounds = range.split("-", 2);
+                    if (bounds.length != 2) throw new IOException("bad range " + range);
+                    state.markDone(Long.parseLong(bounds[0]), Long.parseLong(bounds[1]));
+                }
+            }
+            return state;
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Warning: Ignoring unreadable download state " + metaPath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     Writes the sidecar if the last write was more than a second ago, for progress made in many small steps
+     */
+    synchronized void checkpoint(Path metaPath) {
+        if (System.nanoTime() - lastWrite < CHECKPOINT_NANOS) return;
+        try {
+            write(metaPath);
+        } catch (IOException e) {
+            System.err.println("Could not save download progress to " + metaPath + ": " + e.getMessage());
+        }
+    }
+
+    synchronized void write(Path metaPath) throws IOException {
+        lastWrite = System.nanoTime();
+        Properties properties = new Properties();
+        properties.setProperty("size", Long.toString(size));
+        properties.setProperty("sha256", hash);
+        if (done != null) {
+            StringBuilder ranges = new StringBuilder();
+            for (Map.Entry<Long, Long> range : done.entrySet()) {
+                if (ranges.length() > 0) ranges.append(',');
+                ranges.append(range.getKey()).append('-').append(range.getValue());
+            }
+            properties.setProperty("done", ranges.toString());
+        }
+        Path temp = metaPath.resolveSibling(metaPath.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            properties.store(writer, "Partial download");
+        }
+        Files.move(temp, metaPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
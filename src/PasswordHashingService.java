@@ -0,0 +1,180 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ Runs the PasswordHasher on a small fixed pool instead of on the connection threads, so a login
+ storm queues for a few cores rather than taking all of them. Admission is cost-aware: a request is
+ turned away at once when the queue is full or when the work already queued (at the measured mean
+ cost per hash) would keep it waiting longer than MAX_WAIT_MS.
+ Successful verifications are remembered for VERIFIED_TTL_MS as an HMAC-SHA256 of the stored hash
+ and the password under a random key of their own, so a quick reconnect skips the expensive check, no
+ two entries can be attacked together and a password change invalidates the entry by itself.
+ */
+class PasswordHashingService implements AutoCloseable {
+
+    static final int QUEUE_CAPACITY = 256;
+    static final long MAX_WAIT_MS = 2000;
+    static final long VERIFIED_TTL_MS = 10 * 60 * 1000;
+    static final int VERIFIED_CACHE_SIZE = 10000;
+
+    private static final int KEY_LENGTH = 32;
+
+    private static class Verified {
+        final String storedHash;
+        final byte[] key;
+        final byte[] tag;
+        final long expiresAt;
+
+        Verified(String storedHash, byte[] key, byte[] tag, long expiresAt) {
+            this.storedHash = storedHash;
+            this.key = key;
+            this.tag = tag;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final PasswordHasher hasher;
+    private final int threads;
+    private final ThreadPoolExecutor pool;
+    private final LatencyHistogram hashLatency = new LatencyHistogram();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Verified> verified = new ConcurrentHashMap<>();
+
+    PasswordHashingService(PasswordHasher hasher) {
+        this.hasher = hasher;
+        this.threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+                    Thread thread = new Thread(r, "password-hash-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    String hashPassword(String password) throws ServerBusyException {
+        return run(() -> hasher.hashPassword(password));
+    }
+
+    boolean verifyPassword(String username, String password, String storedHash) throws ServerBusyException {
+        Verified entry = verified.get(username);
+        if (entry != null && entry.expiresAt > System.currentTimeMillis()
+                && entry.storedHash.equals(storedHash)
+                && MessageDigest.isEqual(entry.tag, tag(entry.key, storedHash, password))) {
+            cacheHits.increment();
+            return true;
+        }
+
+        boolean ok = run(() -> hasher.verifyPassword(password, storedHash));
+        if (ok) {
+            if (verified.size() >= VERIFIED_CACHE_SIZE) {
+                evict();
+            }
+            byte[] key = new byte[KEY_LENGTH];
+            random.nextBytes(key);
+            verified.put(username, new Verified(storedHash, key, tag(key, storedHash, password),
+                    System.currentTimeMillis() + VERIFIED_TTL_MS));
+        }
+        return ok;
+    }
+
+    // Drops expired entries, and if that is not enough an arbitrary quarter of the cache
+    private void evict() {
+        long now = System.currentTimeMillis();
+        verified.values().removeIf(entry -> entry.expiresAt <= now);
+        int excess = verified.size() - VERIFIED_CACHE_SIZE * 3 / 4;
+        Iterator<String> names = verified.keySet().iterator();
+        while (excess-- > 0 && names.hasNext()) {
+            names.next();
+            names.remove();
+        }
+    }
+
+    void invalidate(String username) {
+        verified.remove(username);
+    }
+
+    private <T> T run(Callable<T> work) throws ServerBusyException {
+        long queued = pool.getQueue().size();
+        long expectedWaitMs = queued * hashLatency.getMeanMicros() / threads / 1000;
+        if (expectedWaitMs > MAX_WAIT_MS) {
+            rejected.increment();
+            throw new ServerBusyException("Server busy, try again shortly.");
+        }
+
+        Future<T> result;
+        try {
+            result = pool.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    return work.call();
+                } finally {
+                    hashLatency.record(System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new ServerBusyException("Server busy, try again shortly.");
+        }
+
+        try {
+            return result.get(MAX_WAIT_MS * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerBusyException("Interrupted while waiting for password check.");
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            rejected.increment();
+            throw new ServerBusyException("Server busy, try again shortly.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static byte[] tag(byte[] key, String storedHash, String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            mac.update(storedHash.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password == null ? new byte[0] : password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     hash latency summary plus rejected, cacheHits and queued
+     */
+    String summary() {
+        return hashLatency.summary() + ",rejected:" + rejected.sum() + ",cacheHits:" + cacheHits.sum()
+                + ",queued:" + pool.getQueue().size();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+        verified.clear();
+    }
+}
@@ -0,0 +1,12 @@
+import java.io.IOException;
+
+/**
+ Thrown when a peer answers BUSY because its upload queue is full; another source should be tried.
+ */
+class PeerBusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    PeerBusyException(String message) {
+        super(message);
+    }
+}
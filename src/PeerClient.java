@@ -1,35 +1,62 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 
 public class PeerClient {
+    // Uploads served at once and how many more may wait in line before BUSY
+    static final int UPLOAD_SLOTS = Integer.getInteger("ripple.uploadSlots", 4);
+    static final int UPLOAD_QUEUE = Integer.getInteger("ripple.uploadQueue", 16);
+    // Handler threads beyond the upload ones, for PIECES, probes and kicks
+    private static final int CONTROL_HANDLERS = 4;
+
     private String serverHost;
     private int serverPort;
     private final int myListenPort;
     private final int myUdpPort;
     private FileHandler fileHandler;
     private DownloadStrategy downloadStrategy;
-    private Transport serverTransport;
+    private ServerSession serverSession;
+    private PeerDirectoryMirror peerDirectory;
     private User loggedInUser;
     private final Set<String> knownSharedFiles = ConcurrentHashMap.newKeySet();
     private Thread directoryWatcherThread;
+    private final UploadSlots uploadSlots = new UploadSlots(UPLOAD_SLOTS, UPLOAD_QUEUE);
+    private final BandwidthLimits bandwidth;
 
 
     public PeerClient(String serverHost, int serverPort, int myListenPort, FileHandler fileHandler, DownloadStrategy downloadStrategy) {
+        this(serverHost, serverPort, myListenPort, fileHandler, downloadStrategy, new BandwidthLimits());
+    }
+
+    public PeerClient(String serverHost, int serverPort, int myListenPort, FileHandler fileHandler, DownloadStrategy downloadStrategy,
+                      BandwidthLimits bandwidth) {
         this.serverHost = serverHost;
         this.serverPort = serverPort;
         this.myListenPort = myListenPort;
         this.myUdpPort = myListenPort + 1;
         this.fileHandler = fileHandler;
         this.downloadStrategy = downloadStrategy;
+        this.bandwidth = bandwidth;
     }
 
-    public void setSessionContext(User user, Transport transport) {
+    public void setSessionContext(User user, ServerSession session) {
         this.loggedInUser = user;
-        this.serverTransport = transport;
+        this.serverSession = session;
+        this.peerDirectory = new PeerDirectoryMirror(session);
     }
 
     public static void main(String[] args) throws IOException {
@@ -37,9 +64,9 @@ public class PeerClient {
         int serverPort = 9090;
         User loggedInUser = null;
 
-        Transport serverTransport = null;
+        ServerSession serverSession = null;
         try {
-            serverTransport = new TCPTransport(serverHost, serverPort);
+            serverSession = new ServerSession(new TCPTransport(serverHost, serverPort));
             System.out.println("Connected to server at " + serverHost + ":" + serverPort);
         } catch (IOException e) {
             System.err.println("FATAL: Could not connect to the server at " + serverHost + ":" + serverPort);
@@ -64,8 +91,7 @@ public class PeerClient {
                     System.out.print("Enter password: ");
                     String password = scanner.nextLine();
 
-                    serverTransport.sendLine("LOGIN " + username + " " + password);
-                    String response = serverTransport.readLine();
+                    String response = serverSession.requestLine("LOGIN " + username + " " + password);
 
                     if (response != null && response.startsWith("LOGIN_SUCCESS")) {
                         String[] payload = response.substring(14).split(";", 4);
@@ -120,8 +146,7 @@ public class PeerClient {
                     System.out.print("Enter a password: ");
                     String newPassword = scanner.nextLine();
 
-                    serverTransport.sendLine("SIGNUP " + newUsername + " " + newPassword);
-                    String signupResponse = serverTransport.readLine();
+                    String signupResponse = serverSession.requestLine("SIGNUP " + newUsername + " " + newPassword);
 
                     if ("SIGNUP_SUCCESS".equals(signupResponse)) {
                         System.out.println("Account created successfully! Please log in.");
@@ -131,7 +156,7 @@ public class PeerClient {
                     break;
                 case "3":
                     System.out.println("Exiting.");
-                    serverTransport.close();
+                    serverSession.close();
                     return;
                 default:
                     System.out.println("Invalid option.");
@@ -148,30 +173,35 @@ public class PeerClient {
         int myPort = findAvailablePortPair();
         if (myPort == -1) {
             System.err.println("FATAL: Could not find any available ports.");
-            serverTransport.close();
+            serverSession.close();
             return;
         }
         System.out.println("--> Automatically assigned TCP Port " + myPort + " and UDP Port " + (myPort + 1));
 
         FileHandler fileHandler = new LocalFileHandler(localSharedDirectory);
-        DownloadStrategy downloadStrategy = new ChunkedDownload(8192, fileHandler, userSharedPath);
-
-        PeerClient client = new PeerClient(serverHost, serverPort, myPort, fileHandler, downloadStrategy);
-        client.setSessionContext(loggedInUser, serverTransport);
+        ThroughputSeries downloadThroughput = loggedInUser.getDownloadStats().getThroughput();
+        BandwidthLimits bandwidth = BandwidthLimits.fromSystemProperties();
+        System.out.println("Bandwidth limits: " + bandwidth);
+        DownloadStrategy downloadStrategy = new MultiSourceDownload(
+                new ChunkedDownload(8192, fileHandler, userSharedPath, downloadThroughput, bandwidth),
+                64 * 1024, userSharedPath, downloadThroughput, bandwidth);
+
+        PeerClient client = new PeerClient(serverHost, serverPort, myPort, fileHandler, downloadStrategy, bandwidth);
+        client.setSessionContext(loggedInUser, serverSession);
         client.start(localSharedDirectory);
     }
 
     public void start(String sharedDirectoryPath) throws IOException {
         System.out.println("DEBUG: PeerClient.start() called with directory: " + sharedDirectoryPath);
 
-        serverTransport.sendLine("REGISTER " + myListenPort);
+        serverSession.send("REGISTER " + myListenPort);
         System.out.println("DEBUG: Sent REGISTER command with port: " + myListenPort);
 
         registerAndShareFiles();
         System.out.println("DEBUG: Completed registerAndShareFiles()");
 
         Path sharedPath = Paths.get(sharedDirectoryPath);
-        directoryWatcherThread = new Thread(new DirectoryWatcher(sharedPath, serverTransport));
+        directoryWatcherThread = new Thread(new DirectoryWatcher(sharedPath, serverSession));
         directoryWatcherThread.setDaemon(true);
         directoryWatcherThread.start();
         System.out.println("DEBUG: Started directory watcher thread");
@@ -186,16 +216,42 @@ public class PeerClient {
 
             @Override
             public void run() {
-                try (ServerSocket serverSocket = new ServerSocket(myListenPort)) {
-                    System.out.println("TCP Download Server listening on port " + myListenPort);
-
-                    while (!serverSocket.isClosed()) {
-                        new Thread(new DownloadHandler(serverSocket.accept())).start();
+                // Handlers come from a bounded pool: when every thread is taken a connection is closed
+                // instead of costing another thread. Nothing is written, since the request has not been
+                // read and a legacy DOWNLOAD would take any reply for file content.
+                AtomicInteger handlerCount = new AtomicInteger();
+                ThreadPoolExecutor handlers = new ThreadPoolExecutor(0, UPLOAD_SLOTS + UPLOAD_QUEUE + CONTROL_HANDLERS,
+                        60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                        task -> new Thread(task, "peer-upload-" + handlerCount.incrementAndGet()));
+                // A channel-backed listener, so accepted sockets can take zero-copy transfers
+                try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                    serverChannel.bind(new InetSocketAddress(myListenPort));
+                    System.out.println("TCP Download Server listening on port " + myListenPort + " with "
+                            + UPLOAD_SLOTS + " upload slots and a queue of " + UPLOAD_QUEUE);
+
+                    while (serverChannel.isOpen()) {
+                        SocketChannel connection = serverChannel.accept();
+                        try {
+                            handlers.execute(new DownloadHandler(connection));
+                        } catch (RejectedExecutionException e) {
+                            System.out.println("All upload handlers busy, turned away " + connection.socket().getRemoteSocketAddress());
+                            closeQuietly(connection);
+                        }
                     }
                 } catch (IOException e) {
-                    if (!"Socket closed".equals(e.getMessage())) {
+                    if (!(e instanceof ClosedChannelException) && !"Socket closed".equals(e.getMessage())) {
                         System.err.println("FATAL: Failed to listen for TCP connections: " + e.getMessage());
                     }
+                } finally {
+                    handlers.shutdown();
+                }
+            }
+
+            private void closeQuietly(SocketChannel connection) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // the peer is gone already
                 }
             }
         }
@@ -222,7 +278,7 @@ public class PeerClient {
         for (String fileName : sharedFiles) {
             System.out.println("DEBUG: Sharing file: " + fileName);
             try {
-                serverTransport.sendLine("SHARE " + fileName);
+                shareFile(fileName);
                 knownSharedFiles.add(fileName);
                 System.out.println("DEBUG: Successfully sent SHARE command for: " + fileName);
             } catch (IOException e) {
@@ -235,6 +291,21 @@ public class PeerClient {
     }
 
 
+    /**
+     Announces a file together with its content hash, so identical copies under other names pool together
+     */
+    public void shareFile(String fileName) throws IOException {
+        String contentHash;
+        try {
+            contentHash = fileHandler.getContentHash(fileName);
+        } catch (IOException e) {
+            System.err.println("Could not hash " + fileName + ", sharing by name only: " + e.getMessage());
+            serverSession.send("SHARE " + fileName);
+            return;
+        }
+        serverSession.send("SHARE " + contentHash + " " + fileName);
+    }
+
     private void handleUserInput() throws IOException {
         if (loggedInUser.isAdmin()) {
             handleAdminInput();
@@ -264,8 +335,8 @@ public class PeerClient {
                     displayMyStats();
                     break;
                 case "5":
-                    serverTransport.sendLine("UNREGISTER");
-                    serverTransport.close();
+                    serverSession.send("UNREGISTER");
+                    serverSession.close();
                     System.exit(0);
                     return;
                 default:
@@ -278,7 +349,7 @@ public class PeerClient {
         Scanner scanner = new Scanner(System.in);
         while (true) {
             System.out.println("\n--- ADMIN MENU ---");
-            System.out.println("[1] Search Files  [2] List Peers  [3] Browse Peer's Files  [4] Remove User  [5] My Stats [6] Exit");
+            System.out.println("[1] Search Files  [2] List Peers  [3] Browse Peer's Files  [4] Remove User  [5] My Stats [6] Server Metrics [7] Exit");
             System.out.print("Choose an option: ");
             String choice = scanner.nextLine();
             switch (choice) {
@@ -299,8 +370,11 @@ public class PeerClient {
                     displayMyStats();
                     break;
                 case "6":
-                    serverTransport.sendLine("UNREGISTER");
-                    serverTransport.close();
+                    displayServerMetrics();
+                    break;
+                case "7":
+                    serverSession.send("UNREGISTER");
+                    serverSession.close();
                     System.exit(0);
                     return;
                 default:
@@ -318,15 +392,68 @@ public class PeerClient {
         System.out.println("\n--- Upload Stats ---");
         System.out.println("Files Uploaded: " + loggedInUser.getUploadStats().getFileCount());
         System.out.println("Total Bytes Uploaded: " + formatFileSize(loggedInUser.getUploadStats().getTotalBytes()));
+        System.out.println("\n--- Transfer Rates ---");
+        System.out.println("This session, download: " + ThroughputSeries.formatSummary(loggedInUser.getDownloadStats().getThroughput().summary()));
+        System.out.println("This session, upload: " + ThroughputSeries.formatSummary(loggedInUser.getUploadStats().getThroughput().summary()));
+        try {
+            String[] rates = ThroughputSeries.parseRatesReply(serverSession.requestLine("RATES"));
+            if (rates != null) {
+                System.out.println("All sessions, download: " + ThroughputSeries.formatSummary(rates[0]));
+                System.out.println("All sessions, upload: " + ThroughputSeries.formatSummary(rates[1]));
+            }
+        } catch (IOException e) {
+            System.err.println("Could not load transfer rates: " + e.getMessage());
+        }
+        if (loggedInUser.isAdmin()) {
+            try {
+                for (String board : new String[]{"uploaders", "downloaders"}) {
+                    String response = serverSession.requestLine("TOP " + board + " 5");
+                    System.out.println("\n--- Top " + board + " ---");
+                    String prefix = "TOP " + board;
+                    if (response == null || !response.startsWith(prefix)) {
+                        System.out.println(response != null ? response : "No response");
+                        continue;
+                    }
+                    String body = response.substring(prefix.length()).trim();
+                    if (body.isEmpty()) {
+                        System.out.println("(nobody yet)");
+                        continue;
+                    }
+                    String[] entries = body.split(";");
+                    for (int i = 0; i < entries.length; i++) {
+                        String[] entry = entries[i].split("=", 2);
+                        if (entry.length == 2) {
+                            System.out.println((i + 1) + ". " + entry[0] + " - " + formatFileSize(Long.parseLong(entry[1])));
+                        }
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Could not load top sharers: " + e.getMessage());
+            }
+        }
         System.out.println("-----------------------");
     }
 
+    private void displayServerMetrics() throws IOException {
+        String response = serverSession.requestLine("METRICS");
+        if (response == null || !response.startsWith("METRICS ")) {
+            System.err.println("Could not load metrics: " + (response != null ? response : "No response."));
+            return;
+        }
+        System.out.println("\n--- Server Metrics ---");
+        for (String pair : response.substring(8).split(";")) {
+            String[] parts = pair.split("=", 2);
+            if (parts.length == 2) {
+                System.out.printf("%-28s %s\n", parts[0], parts[1]);
+            }
+        }
+        System.out.println("----------------------");
+    }
+
     private void searchAndDownload(String fileName) throws IOException {
-        serverTransport.sendLine("SEARCH " + fileName);
-        String response = serverTransport.readLine();
+        String response = serverSession.requestLine("SEARCH " + fileName);
 
-        // Parse the enhanced search response format
-        Map<String, Map<String, String>> searchResults = parseEnhancedSearchResponse(response);
+        List<SearchResult> searchResults = SearchResult.parse(response);
 
         if (searchResults.isEmpty()) {
             System.out.println("No peers found with this file.");
@@ -335,19 +462,19 @@ public class PeerClient {
 
         // Flatten the results for display and validation
         Map<String, String> validPeers = new LinkedHashMap<>();
+        Map<String, SearchResult> resultOf = new HashMap<>();
 
         System.out.println("\nVerifying which peers have the file...");
-        for (Map.Entry<String, Map<String, String>> fileEntry : searchResults.entrySet()) {
-            String foundFileName = fileEntry.getKey();
-            Map<String, String> peersWithFile = fileEntry.getValue();
-
-            for (Map.Entry<String, String> peerEntry : peersWithFile.entrySet()) {
-                String peerUsername = peerEntry.getKey();
-                String peerAddress = peerEntry.getValue();
+        for (SearchResult result : searchResults) {
+            for (SearchResult.Source source : result.getSources()) {
+                String peerUsername = source.getUsername();
+                String peerAddress = source.getAddress();
+                String foundFileName = source.getFileName();
 
                 // Verify peer actually has the file
                 if (getPeerFileSize(peerAddress, foundFileName) > -1) {
                     validPeers.put(peerUsername + " (" + foundFileName + ")", peerAddress + "|" + foundFileName);
+                    resultOf.put(peerAddress + "|" + foundFileName, result);
                 }
             }
         }
@@ -386,9 +513,23 @@ public class PeerClient {
                         .map(e -> e.getKey().split(" \\(")[0])
                         .findFirst().orElse("Unknown");
 
-                System.out.println("Starting download of '" + actualFileName + "' from " + peerUsername + " at " + peerAddress);
+                // Every verified peer with the same file is a source, the chosen one first
+                List<SearchResult.Source> sources = new ArrayList<>();
+                for (SearchResult.Source source : resultOf.get(indexMap.get(choice)).getSources()) {
+                    String key = source.getAddress() + "|" + source.getFileName();
+                    if (validPeers.containsValue(key)) {
+                        if (key.equals(indexMap.get(choice))) {
+                            sources.add(0, source);
+                        } else {
+                            sources.add(source);
+                        }
+                    }
+                }
+
+                System.out.println("Starting download of '" + actualFileName + "' from " + peerUsername + " at " + peerAddress
+                        + (sources.size() > 1 ? " and " + (sources.size() - 1) + " other peer(s)" : ""));
                 long fileSize = getPeerFileSize(peerAddress, actualFileName);
-                downloadStrategy.download(peerAddress, actualFileName);
+                downloadStrategy.download(sources, actualFileName);
 
                 if (fileSize > 0) {
                     loggedInUser.getDownloadStats().addFile();
@@ -397,7 +538,7 @@ public class PeerClient {
                     System.out.println("Your download stats have been updated with the server.");
                 }
 
-                serverTransport.sendLine("SHARE " + actualFileName);
+                shareFile(actualFileName);
             } else {
                 System.out.println("Invalid selection.");
             }
@@ -406,43 +547,6 @@ public class PeerClient {
         }
     }
 
-    // Add this new method to parse the enhanced search response
-    private Map<String, Map<String, String>> parseEnhancedSearchResponse(String response) {
-        Map<String, Map<String, String>> results = new LinkedHashMap<>();
-
-        if (response == null || response.trim().isEmpty()) {
-            return results;
-        }
-
-        // Server sends format: filename1=peer1:address1,peer2:address2;filename2=peer3:address3
-        String[] fileEntries = response.split(";");
-
-        for (String fileEntry : fileEntries) {
-            if (fileEntry.trim().isEmpty()) continue;
-
-            String[] fileParts = fileEntry.split("=", 2);
-            if (fileParts.length == 2) {
-                String fileName = fileParts[0];
-                String peerList = fileParts[1];
-
-                Map<String, String> peersForFile = new LinkedHashMap<>();
-
-                String[] peers = peerList.split(",");
-                for (String peer : peers) {
-                    String[] peerParts = peer.split(":", 2);
-                    if (peerParts.length == 2) {
-                        String username = peerParts[0];
-                        String address = peerParts[1];
-                        peersForFile.put(username, address);
-                    }
-                }
-
-                results.put(fileName, peersForFile);
-            }
-        }
-
-        return results;
-    }
     private void browseAndDownload() throws IOException {
         System.out.println("\n--- Browse Peer's Files ---");
         Map<String, String> onlinePeers = listPeers();
@@ -506,7 +610,7 @@ public class PeerClient {
                         updateRemoteStats();
                         System.out.println("Your download stats have been updated with the server.");
                     }
-                    serverTransport.sendLine("SHARE " + selectedFile.getName());
+                    shareFile(selectedFile.getName());
                 } else {
                     System.err.println("Invalid file number selected.");
                 }
@@ -531,8 +635,7 @@ public class PeerClient {
             System.out.println("Removal cancelled.");
             return;
         }
-        serverTransport.sendLine("REMOVE_USER " + usernameToRemove);
-        String response = serverTransport.readLine();
+        String response = serverSession.requestLine("REMOVE_USER " + usernameToRemove);
         if ("REMOVE_SUCCESS".equals(response)) {
             System.out.println("Server has removed user '" + usernameToRemove + "'.");
             if (onlinePeers.containsKey(usernameToRemove)) {
@@ -550,9 +653,7 @@ public class PeerClient {
     }
 
     private Map<String, String> listPeers() throws IOException {
-        serverTransport.sendLine("LIST_PEERS");
-        String response = serverTransport.readLine();
-        Map<String, String> onlinePeers = parsePeerInfoResponse(response);
+        Map<String, String> onlinePeers = peerDirectory.refresh();
         onlinePeers.remove(loggedInUser.getUsername());
         if (onlinePeers.isEmpty()) {
             System.out.println("\nYou are the only peer online.");
@@ -570,19 +671,6 @@ public class PeerClient {
         return onlinePeers;
     }
 
-    private Map<String, String> parsePeerInfoResponse(String response) {
-        Map<String, String> peerInfoMap = new LinkedHashMap<>();
-        if (response == null || response.isEmpty()) return peerInfoMap;
-        String[] pairs = response.split(",");
-        for (String pair : pairs) {
-            String[] parts = pair.split("=", 2);
-            if (parts.length == 2) {
-                peerInfoMap.put(parts[0], parts[1]);
-            }
-        }
-        return peerInfoMap;
-    }
-
     private List<String> getFileListFromPeer(String peerAddress) {
         try {
             String[] parts = peerAddress.split(":");
@@ -673,11 +761,10 @@ public class PeerClient {
         }
     }
 
+    // Sends only what changed since the last report, so concurrent transfers add up on the server
     private void updateRemoteStats() {
         try {
-            String downloadStatsCsv = loggedInUser.getDownloadStats().toCsvString();
-            String uploadStatsCsv = loggedInUser.getUploadStats().toCsvString();
-            serverTransport.sendLine("UPDATE_STATS " + downloadStatsCsv + " " + uploadStatsCsv);
+            serverSession.sendStatsDelta(loggedInUser);
         } catch (IOException e) {
             System.err.println("Warning: Could not update stats with server: " + e.getMessage());
         }
@@ -685,12 +772,12 @@ public class PeerClient {
 
     private class DirectoryWatcher implements Runnable {
         private final Path path;
-        private final Transport serverTransport;
+        private final ServerSession serverSession;
         private static final int POLLING_INTERVAL_MS = 3000;
 
-        DirectoryWatcher(Path path, Transport serverTransport) {
+        DirectoryWatcher(Path path, ServerSession serverSession) {
             this.path = path;
-            this.serverTransport = serverTransport;
+            this.serverSession = serverSession;
         }
 
         @Override
@@ -704,9 +791,7 @@ public class PeerClient {
                                 System.out.println("\n[Auto-Detector] New file found: " + fileName + ". Sharing with network...");
                                 System.out.print("Choose an option: ");
                                 try {
-                                    synchronized (serverTransport) {
-                                        serverTransport.sendLine("SHARE " + fileName);
-                                    }
+                                    shareFile(fileName);
                                 } catch (IOException e) {
                                     System.err.println("\nFailed to auto-share file " + fileName + ". The connection may be down.");
                                     Thread.currentThread().interrupt();
@@ -789,10 +874,12 @@ public class PeerClient {
 
 
     private class DownloadHandler implements Runnable {
+        private final SocketChannel channel;
         private final Socket socket;
 
-        public DownloadHandler(Socket socket) {
-            this.socket = socket;
+        public DownloadHandler(SocketChannel channel) {
+            this.channel = channel;
+            this.socket = channel.socket();
         }
 
         @Override
@@ -804,21 +891,44 @@ public class PeerClient {
                 System.out.println("TCP Server received request: " + request + " from " + socket.getRemoteSocketAddress());
                 if (request.startsWith("DOWNLOAD ")) {
                     String fileName = request.substring(9);
-                    long totalBytesSent = 0;
-                    try (InputStream fis = fileHandler.getInputStream(fileName)) {
-                        byte[] buffer = new byte[8192];
-                        int bytesRead;
-                        while ((bytesRead = fis.read(buffer)) != -1) {
-                            os.write(buffer, 0, bytesRead);
-                            totalBytesSent += bytesRead;
+                    // The old reply is the bare file, so there is no way to say BUSY or QUEUED: wait
+                    // silently and close without data when the queue is full
+                    if (!acquireSlot(null)) {
+                        System.out.println("Upload queue full, turned away " + socket.getRemoteSocketAddress());
+                        return;
+                    }
+                    long[] totalBytesSent = {0};
+                    try {
+                        FileChannel file = fileHandler.openChannel(fileName);
+                        if (file != null) {
+                            try (FileChannel source = file) {
+                                FileSender.sendChannel(source, 0, source.size(), channel, uploadProgress(totalBytesSent),
+                                        bandwidth.uploadConnection());
+                            }
+                        } else {
+                            try (InputStream fis = fileHandler.getInputStream(fileName)) {
+                                FileSender.sendStream(fis, os, uploadProgress(totalBytesSent), bandwidth.uploadConnection());
+                            }
                         }
                     } catch (IOException e) {
                         System.err.println("Error sending file " + fileName + ": " + e.getMessage());
+                    } finally {
+                        uploadSlots.release();
                     }
-                    if (totalBytesSent > 0) {
-                        loggedInUser.getUploadStats().addFile();
-                        loggedInUser.getUploadStats().addBytes(totalBytesSent);
-                        updateRemoteStats();
+                    recordUpload(totalBytesSent[0], true);
+                } else if (request.startsWith("DOWNLOAD_RANGE ")) {
+                    sendRange(request.substring(15), os, out);
+                } else if (request.startsWith("PIECES ")) {
+                    String fileName = request.substring(7);
+                    try {
+                        PieceHashes pieces = fileHandler.getPieceHashes(fileName);
+                        if (pieces == null) {
+                            out.println("ERROR Piece hashes are not available for " + fileName);
+                        } else {
+                            pieces.writeTo(os);
+                        }
+                    } catch (IOException e) {
+                        out.println("ERROR " + e.getMessage());
                     }
                 } else if (request.startsWith("_KICK_ ")) {
                     String kickedUser = request.substring(7);
@@ -836,11 +946,101 @@ public class PeerClient {
                 System.err.println("Error in DownloadHandler: " + e.getMessage());
             } finally {
                 try {
-                    socket.close();
+                    channel.close();
                 } catch (IOException e) {
                     // ignore
                 }
             }
         }
+
+        // DOWNLOAD_RANGE <offset> <length> <name>: the header RANGE <offset> <length> <size> <sha256> and then
+        // exactly length bytes. A length of -1 means up to the end of the file.
+        private void sendRange(String args, OutputStream os, PrintWriter out) {
+            String[] parts = args.split(" ", 3);
+            long offset;
+            long length;
+            try {
+                if (parts.length != 3) throw new NumberFormatException();
+                offset = Long.parseLong(parts[0]);
+                length = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                out.println("ERROR Invalid range request: " + args);
+                return;
+            }
+            String fileName = parts[2];
+            // A zero-length request only asks for the size and hash and does not wait for a slot
+            boolean slot = length != 0;
+            if (slot) {
+                try {
+                    if (!acquireSlot(out)) {
+                        out.println("BUSY");
+                        return;
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+            long[] totalBytesSent = {0};
+            long size = -1;
+            boolean headerSent = false;
+            try (FileChannel source = fileHandler.openChannel(fileName)) {
+                if (source == null) {
+                    out.println("ERROR Ranges are not supported for " + fileName);
+                    return;
+                }
+                size = source.size();
+                if (offset < 0 || offset > size) {
+                    out.println("ERROR Range starts outside " + fileName + " (" + size + " bytes)");
+                    return;
+                }
+                long count = length < 0 ? size - offset : Math.min(length, size - offset);
+                String hash = fileHandler.getContentHash(fileName);
+                os.write(("RANGE " + offset + " " + count + " " + size + " " + hash + "\n").getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                headerSent = true;
+                FileSender.sendChannel(source, offset, count, channel, uploadProgress(totalBytesSent), bandwidth.uploadConnection());
+            } catch (IOException e) {
+                System.err.println("Error sending range of " + fileName + ": " + e.getMessage());
+                if (!headerSent) out.println("ERROR " + e.getMessage());
+            } finally {
+                if (slot) uploadSlots.release();
+            }
+            // A file is counted once, by the range that reaches its end
+            recordUpload(totalBytesSent[0], size >= 0 && offset + totalBytesSent[0] == size);
+        }
+
+        /**
+         Waits for an upload slot, telling the downloader its place in line with QUEUED <position> lines
+         when out is given. False if the queue is full; an IOException means the downloader went away.
+         */
+        private boolean acquireSlot(PrintWriter out) throws IOException {
+            try {
+                return uploadSlots.acquire(position -> {
+                    if (out == null) return;
+                    out.println("QUEUED " + position);
+                    if (out.checkError()) throw new IOException("Downloader left the upload queue");
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for an upload slot");
+            }
+        }
+
+        private LongConsumer uploadProgress(long[] totalBytesSent) {
+            ThroughputSeries throughput = loggedInUser.getUploadStats().getThroughput();
+            return sent -> {
+                totalBytesSent[0] += sent;
+                throughput.record(sent);
+            };
+        }
+
+        private void recordUpload(long bytes, boolean completesFile) {
+            if (bytes <= 0) return;
+            if (completesFile) {
+                loggedInUser.getUploadStats().addFile();
+            }
+            loggedInUser.getUploadStats().addBytes(bytes);
+            updateRemoteStats();
+        }
     }
 }
@@ -0,0 +1,130 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ The server's list of registered peers plus a bounded log of recent changes.
+ Every add/remove bumps the version, so clients can keep a mirror and ask only for
+ what changed since the version they last saw. The epoch changes on every server
+ start, which tells clients their mirror belongs to an older run.
+ */
+public class PeerDirectory {
+
+    private static final int MAX_CHANGES = 1024;
+
+    private final long epoch = System.currentTimeMillis();
+    private final List<PeerInfo> peers = new ArrayList<>();
+    private final Deque<Change> changes = new ArrayDeque<>();
+    private long version;
+
+    // Full listing is cached per version because most LIST_PEERS calls see no change
+    private String cachedListing;
+    private long cachedListingVersion = -1;
+
+    private static class Change {
+        final long version;
+        final boolean added;
+        final PeerInfo peer;
+
+        Change(long version, boolean added, PeerInfo peer) {
+            this.version = version;
+            this.added = added;
+            this.peer = peer;
+        }
+    }
+
+    public synchronized boolean add(PeerInfo peer) {
+        if (peers.contains(peer)) {
+            return false;
+        }
+        peers.add(peer);
+        record(true, peer);
+        return true;
+    }
+
+    public synchronized boolean remove(PeerInfo peer) {
+        if (!peers.remove(peer)) {
+            return false;
+        }
+        record(false, peer);
+        return true;
+    }
+
+    private void record(boolean added, PeerInfo peer) {
+        version++;
+        changes.addLast(new Change(version, added, peer));
+        if (changes.size() > MAX_CHANGES) {
+            changes.removeFirst();
+        }
+    }
+
+    public synchronized int size() {
+        return peers.size();
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     Legacy response: user=address,... for every peer.
+     */
+    public synchronized String listAll() {
+        if (cachedListingVersion != version) {
+            StringBuilder response = new StringBuilder();
+            appendPeers(response, 0, peers.size());
+            cachedListing = response.toString();
+            cachedListingVersion = version;
+        }
+        return cachedListing;
+    }
+
+    /**
+     PEERS epoch version total user=address,... for peers [offset, offset + limit).
+     */
+    public synchronized String page(int offset, int limit) {
+        int from = Math.max(0, Math.min(offset, peers.size()));
+        int to = (int) Math.min(peers.size(), (long) from + Math.max(0, limit));
+        StringBuilder response = new StringBuilder("PEERS ")
+                .append(epoch).append(" ").append(version).append(" ").append(peers.size()).append(" ");
+        appendPeers(response, from, to);
+        return response.toString();
+    }
+
+    /**
+     DELTA epoch version +user=address,-user=address,... in the order the changes happened.
+     Falls back to a full PEERS page when the client's version is from another epoch or
+     older than the change log remembers.
+     */
+    public synchronized String changesSince(long clientEpoch, long clientVersion) {
+        long oldestKnown = changes.isEmpty() ? version : changes.peekFirst().version - 1;
+        if (clientEpoch != epoch || clientVersion > version || clientVersion < oldestKnown) {
+            return page(0, peers.size());
+        }
+
+        StringBuilder response = new StringBuilder("DELTA ")
+                .append(epoch).append(" ").append(version).append(" ");
+        boolean first = true;
+        for (Change change : changes) {
+            if (change.version <= clientVersion) continue;
+            if (!first) response.append(",");
+            first = false;
+            response.append(change.added ? "+" : "-")
+                    .append(change.peer.username).append("=").append(change.peer.address);
+        }
+        return response.toString();
+    }
+
+    private void appendPeers(StringBuilder response, int from, int to) {
+        for (int i = from; i < to; i++) {
+            PeerInfo pi = peers.get(i);
+            if (i > from) response.append(",");
+            response.append(pi.username).append("=").append(pi.address);
+        }
+    }
+}
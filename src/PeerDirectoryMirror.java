@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ Client side copy of the server's peer list. The first refresh pages through the
+ full list, later refreshes only fetch the changes since the version we hold.
+ */
+public class PeerDirectoryMirror {
+
+    private static final int PAGE_SIZE = 500;
+
+    private final ServerSession serverSession;
+    private final Map<String, String> peers = new LinkedHashMap<>();
+    private long epoch = -1;
+    private long version = -1;
+
+    public PeerDirectoryMirror(ServerSession serverSession) {
+        this.serverSession = serverSession;
+    }
+
+    /**
+     Brings the mirror up to date and returns a copy of username -> peer address.
+     */
+    public synchronized Map<String, String> refresh() throws IOException {
+        if (version < 0) {
+            loadAllPages();
+        }
+        // Also picks up anything that changed while the pages were being fetched
+        applyResponse(serverSession.requestLine("LIST_PEERS SINCE " + epoch + " " + version));
+        return new LinkedHashMap<>(peers);
+    }
+
+    public synchronized void invalidate() {
+        peers.clear();
+        epoch = -1;
+        version = -1;
+    }
+
+    private void loadAllPages() throws IOException {
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            peers.clear();
+            int offset = 0;
+            long firstEpoch = -1;
+            long firstVersion = -1;
+            boolean changedWhilePaging = false;
+            while (true) {
+                String response = serverSession.requestLine("LIST_PEERS PAGE " + offset + " " + PAGE_SIZE);
+                String[] header = response.split(" ", 5);
+                if (header.length < 4 || !"PEERS".equals(header[0])) {
+                    throw new IOException("Unexpected LIST_PEERS response: " + response);
+                }
+                long pageVersion = Long.parseLong(header[2]);
+                if (firstVersion < 0) {
+                    firstEpoch = Long.parseLong(header[1]);
+                    firstVersion = pageVersion;
+                } else if (pageVersion != firstVersion) {
+                    changedWhilePaging = true;
+                }
+                int total = Integer.parseInt(header[3]);
+                int received = putAll(header.length == 5 ? header[4] : "");
+                offset += received;
+                if (received == 0 || offset >= total) break;
+            }
+            // A removal while paging can shift later peers past our offset, so start over
+            if (!changedWhilePaging) {
+                epoch = firstEpoch;
+                version = firstVersion;
+                return;
+            }
+        }
+        // The list keeps changing under us: take it in one piece. A delta from an unknown version is
+        // answered with the whole list and the version it belongs to.
+        applyResponse(serverSession.requestLine("LIST_PEERS SINCE -1 -1"));
+    }
+
+    private void applyResponse(String response) throws IOException {
+        String[] header = response.split(" ", 5);
+        if ("PEERS".equals(header[0]) && header.length >= 4) {
+            // Server could not give us a delta, it sent the full list instead
+            peers.clear();
+            putAll(header.length == 5 ? header[4] : "");
+            epoch = Long.parseLong(header[1]);
+            version = Long.parseLong(header[2]);
+        } else if ("DELTA".equals(header[0]) && header.length >= 3) {
+            String[] parts = response.split(" ", 4);
+            if (parts.length == 4) {
+                for (String change : parts[3].split(",")) {
+                    if (change.length() < 2) continue;
+                    String[] pair = change.substring(1).split("=", 2);
+                    if (pair.length != 2) continue;
+                    if (change.charAt(0) == '+') {
+                        peers.put(pair[0], pair[1]);
+                    } else if (pair[1].equals(peers.get(pair[0]))) {
+                        peers.remove(pair[0]);
+                    }
+                }
+            }
+            epoch = Long.parseLong(header[1]);
+            version = Long.parseLong(header[2]);
+        } else {
+            throw new IOException("Unexpected LIST_PEERS response: " + response);
+        }
+    }
+
+    private int putAll(String listing) {
+        int count = 0;
+        if (listing.isEmpty()) return count;
+        for (String pair : listing.split(",")) {
+            String[] parts = pair.split("=", 2);
+            if (parts.length == 2) {
+                peers.put(parts[0], parts[1]);
+                count++;
+            }
+        }
+        return count;
+    }
+}
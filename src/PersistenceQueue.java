@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ The one thread that touches the user store on disk. Callers hand it a write and wait for the
+ result, so a slow disk only delays the writers queued behind it; logins read the in-memory map
+ and never get here.
+ */
+class PersistenceQueue implements AutoCloseable {
+
+    interface Write<T> {
+        T run() throws IOException;
+    }
+
+    private final ExecutorService thread = Executors.newSingleThreadExecutor(r -> {
+        Thread persistence = new Thread(r, "user-persistence");
+        persistence.setDaemon(true);
+        return persistence;
+    });
+    private final LatencyHistogram writeLatency;
+
+    PersistenceQueue(LatencyHistogram writeLatency) {
+        this.writeLatency = writeLatency;
+    }
+
+    <T> T call(Write<T> write) throws IOException {
+        Future<T> result = thread.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                return write.run();
+            } finally {
+                writeLatency.record(System.nanoTime() - start);
+            }
+        });
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the user store", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        thread.shutdown();
+        try {
+            thread.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
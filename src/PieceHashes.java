@@ -0,0 +1,298 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ SHA-256 of every PIECE_SIZE piece of a file and the Merkle root over them. A leaf is the hash of
+ the piece bytes, an inner node the hash of 0x01 followed by its two children, and an odd node at
+ the end of a level moves up unchanged. Pieces are hashed in parallel, one per core at a time.
+
+ Peers send these after a PIECES request so a download can check each piece as it arrives and fetch
+ only the pieces that fail again. The root lets the receiver check the list it was sent and compare
+ lists from several peers.
+ */
+class PieceHashes {
+
+    static final int PIECE_SIZE = 1024 * 1024;
+    static final int HASH_LENGTH = 32;
+    private static final int CACHE_MAGIC = 0x52504853; // RPHS
+    // Bounds what a peer can make us allocate, 16 TB in 1 MB pieces
+    private static final int MAX_PIECES = 1 << 24;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(PIECE_SIZE));
+
+    final long size;
+    final int pieceSize;
+    private final byte[][] leaves;
+    private final byte[] root;
+
+    private PieceHashes(long size, int pieceSize, byte[][] leaves) {
+        this.size = size;
+        this.pieceSize = pieceSize;
+        this.leaves = leaves;
+        this.root = merkleRoot(leaves);
+    }
+
+    int count() {
+        return leaves.length;
+    }
+
+    long pieceStart(int index) {
+        return (long) index * pieceSize;
+    }
+
+    long pieceEnd(int index) {
+        return Math.min(size, pieceStart(index + 1));
+    }
+
+    boolean matches(int index, byte[] digest) {
+        return MessageDigest.isEqual(leaves[index], digest);
+    }
+
+    String rootHex() {
+        return toHex(root);
+    }
+
+    static PieceHashes compute(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            byte[][] leaves = new byte[pieceCount(size, PIECE_SIZE)][];
+            try {
+                IntStream.range(0, leaves.length).parallel().forEach(i -> {
+                    ByteBuffer buffer = BUFFERS.get();
+                    buffer.clear();
+                    long start = (long) i * PIECE_SIZE;
+                    buffer.limit((int) Math.min(PIECE_SIZE, size - start));
+                    try {
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer, start + buffer.position()) < 0) {
+                                throw new IOException("File shrank while hashing: " + file);
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    buffer.flip();
+                    MessageDigest digest = sha256();
+                    digest.update(buffer);
+                    leaves[i] = digest.digest();
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return new PieceHashes(size, PIECE_SIZE, leaves);
+        }
+    }
+
+    /**
+     The hashes for file from the cache file, or computed and cached when the cache is missing or
+     was made for another size or modification time
+     */
+    static PieceHashes cached(Path file, Path cacheFile) throws IOException {
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        if (Files.exists(cacheFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+                if (in.readInt() == CACHE_MAGIC && in.readLong() == size && in.readLong() == modified) {
+                    int pieceSize = in.readInt();
+                    return readLeaves(in, size, pieceSize, in.readInt());
+                }
+            } catch (IOException e) {
+                System.err.println("Warning: Rehashing " + file.getFileName() + ", unreadable piece cache: " + e.getMessage());
+            }
+        }
+
+        PieceHashes hashes = compute(file);
+        Files.createDirectories(cacheFile.getParent());
+        Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(CACHE_MAGIC);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeInt(hashes.pieceSize);
+            out.writeInt(hashes.count());
+            for (byte[] leaf : hashes.leaves) {
+                out.write(leaf);
+            }
+        }
+        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return hashes;
+    }
+
+    /**
+     PIECES <size> <pieceSize> <count> <root> and then count raw 32 byte hashes
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(("PIECES " + size + " " + pieceSize + " " + count() + " " + rootHex() + "\n").getBytes(StandardCharsets.UTF_8));
+        for (byte[] leaf : leaves) {
+            out.write(leaf);
+        }
+        out.flush();
+    }
+
+    /**
+     Reads what writeTo sent after its header line, which the caller has already read; fails if the
+     hashes do not add up to the announced root
+     */
+    static PieceHashes readFrom(String header, InputStream in) throws IOException {
+        String[] fields = header.split(" ");
+        long size;
+        int pieceSize;
+        int count;
+        try {
+            if (fields.length != 5 || !fields[0].equals("PIECES")) throw new NumberFormatException();
+            size = Long.parseLong(fields[1]);
+            pieceSize = Integer.parseInt(fields[2]);
+            count = Integer.parseInt(fields[3]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected reply from peer: " + header);
+        }
+        PieceHashes hashes = readLeaves(new DataInputStream(in), size, pieceSize, count);
+        if (!hashes.rootHex().equals(fields[4])) {
+            throw new IOException("Piece hashes from peer do not match their Merkle root");
+        }
+        return hashes;
+    }
+
+    /**
+     Asks the peer on socket for the hashes of fileName; null when the peer does not know PIECES
+     */
+    static PieceHashes request(Socket socket, String fileName) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("PIECES " + fileName + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        String header = ChunkedDownload.readLine(in);
+        if (header == null) {
+            throw new IOException("Peer closed the connection without answering");
+        }
+        if (header.equals("BUSY")) {
+            throw new PeerBusyException("Peer is busy, its upload queue is full");
+        }
+        if (header.startsWith("ERROR Unknown command")) {
+            return null;
+        }
+        if (header.startsWith("ERROR")) {
+            throw new IOException(header.substring(5).trim());
+        }
+        return readFrom(header, in);
+    }
+
+    private static PieceHashes readLeaves(DataInputStream in, long size, int pieceSize, int count) throws IOException {
+        // Every peer hashes in PIECE_SIZE pieces, anything smaller would only multiply the hashes to read
+        if (pieceSize != PIECE_SIZE) {
+            throw new IOException("Unsupported piece size " + pieceSize + ", expected " + PIECE_SIZE);
+        }
+        if (size < 0 || count > MAX_PIECES || count != (size + pieceSize - 1) / pieceSize) {
+            throw new IOException(count + " pieces of " + pieceSize + " bytes do not fit a " + size + " byte file");
+        }
+        byte[][] leaves = new byte[count][HASH_LENGTH];
+        for (byte[] leaf : leaves) {
+            in.readFully(leaf);
+        }
+        return new PieceHashes(size, pieceSize, leaves);
+    }
+
+    private static int pieceCount(long size, int pieceSize) {
+        long count = (size + pieceSize - 1) / pieceSize;
+        if (count > Integer.MAX_VALUE) throw new IllegalArgumentException("File too large: " + size);
+        return (int) count;
+    }
+
+    static byte[] merkleRoot(byte[][] leaves) {
+        if (leaves.length == 0) return sha256().digest();
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                if (2 * i + 1 == level.length) {
+                    next[i] = level[2 * i];
+                } else {
+                    MessageDigest digest = sha256();
+                    digest.update((byte) 1);
+                    digest.update(level[2 * i]);
+                    digest.update(level[2 * i + 1]);
+                    next[i] = digest.digest();
+                }
+            }
+            level = next;
+        }
+        return Arrays.copyOf(level[0], HASH_LENGTH);
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    interface PieceListener {
+        void piece(long start, long end, boolean valid) throws IOException;
+    }
+
+    /**
+     Hashes bytes as they arrive in file order from a piece boundary and tells the listener about
+     each piece once its last byte is in. Without hashes every piece is reported valid, which keeps
+     the callers the same whether or not the peer sent hashes.
+     */
+    static class Verifier {
+        private final PieceHashes hashes;
+        private final int pieceSize;
+        private final long size;
+        private final MessageDigest digest = sha256();
+        private long position;
+
+        Verifier(PieceHashes hashes, int pieceSize, long size, long position) {
+            if (position % pieceSize != 0) throw new IllegalArgumentException("Not at a piece boundary: " + position);
+            this.hashes = hashes;
+            this.pieceSize = pieceSize;
+            this.size = size;
+            this.position = position;
+        }
+
+        void update(byte[] data, int offset, int length, PieceListener listener) throws IOException {
+            while (length > 0) {
+                int index = (int) (position / pieceSize);
+                long pieceEnd = Math.min(size, (long) (index + 1) * pieceSize);
+                int take = (int) Math.min(length, pieceEnd - position);
+                if (hashes != null) {
+                    digest.update(data, offset, take);
+                }
+                position += take;
+                offset += take;
+                length -= take;
+                if (position == pieceEnd) {
+                    boolean valid = hashes == null || hashes.matches(index, digest.digest());
+                    listener.piece((long) index * pieceSize, pieceEnd, valid);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ Deflate + Base64 for large reply lines, so they still fit the line based protocol.
+ A compressed reply is marked by a 'z' after its request tag: "#12z eJzt...".
+ */
+public final class ResponseCompression {
+
+    // Below this the Base64 overhead eats most of the gain
+    static final int MIN_COMPRESS_LENGTH = 512;
+
+    static final String FEATURE_DEFLATE = "deflate";
+    static final String FEATURE_PEER_TABLE = "peer-table";
+
+    private ResponseCompression() {
+    }
+
+    static String deflate(String line) {
+        byte[] input = line.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 16);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return Base64.getEncoder().encodeToString(out.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String inflate(String encoded) throws IOException {
+        byte[] input;
+        try {
+            input = Base64.getDecoder().decode(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt compressed response", e);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed response");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed response", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
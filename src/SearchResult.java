@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ One file from a SEARCH response together with every peer that holds a copy.
+ Sources may know the file under different names when they share the same contents.
+ */
+public class SearchResult {
+
+    public static class Source {
+        private final String username;
+        private final String address;
+        private final String fileName;
+
+        Source(String username, String address, String fileName) {
+            this.username = username;
+            this.address = address;
+            this.fileName = fileName;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        // Name to request from this particular peer
+        public String getFileName() {
+            return fileName;
+        }
+    }
+
+    private final String fileName;
+    private final String contentHash;
+    private final List<Source> sources = new ArrayList<>();
+
+    SearchResult(String fileName, String contentHash) {
+        this.fileName = fileName;
+        this.contentHash = contentHash;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    // Null when the file was shared by a peer that does not send hashes
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public List<Source> getSources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    /**
+     Parses name[/hash]=user:address[/peerFileName],...;... as sent by the server, or the
+     peer-table form /user:address,.../name[/hash]=index[/peerFileName],...;...
+     */
+    public static List<SearchResult> parse(String response) {
+        List<SearchResult> results = new ArrayList<>();
+        if (response == null || response.trim().isEmpty()) {
+            return results;
+        }
+
+        String[] peerTable = null;
+        if (response.startsWith("/")) {
+            int tableEnd = response.indexOf('/', 1);
+            if (tableEnd == -1) {
+                return results;
+            }
+            peerTable = response.substring(1, tableEnd).split(",");
+            response = response.substring(tableEnd + 1);
+        }
+
+        for (String fileEntry : response.split(";")) {
+            if (fileEntry.trim().isEmpty()) continue;
+
+            String[] fileParts = fileEntry.split("=", 2);
+            if (fileParts.length != 2) continue;
+
+            String fileName = fileParts[0];
+            String contentHash = null;
+            int slash = fileName.indexOf('/');
+            if (slash != -1 && FileEntry.isContentHash(fileName.substring(slash + 1))) {
+                contentHash = fileName.substring(slash + 1);
+                fileName = fileName.substring(0, slash);
+            }
+
+            SearchResult result = new SearchResult(fileName, contentHash);
+            for (String peer : fileParts[1].split(",")) {
+                String peerFileName = fileName;
+                int aliasStart = peer.indexOf('/');
+                if (aliasStart != -1) {
+                    peerFileName = peer.substring(aliasStart + 1);
+                    peer = peer.substring(0, aliasStart);
+                }
+                if (peerTable != null) {
+                    peer = lookupPeer(peerTable, peer);
+                    if (peer == null) continue;
+                }
+                String[] peerParts = peer.split(":", 2);
+                if (peerParts.length == 2) {
+                    result.sources.add(new Source(peerParts[0], peerParts[1], peerFileName));
+                }
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    private static String lookupPeer(String[] peerTable, String index) {
+        try {
+            int i = Integer.parseInt(index);
+            return i >= 0 && i < peerTable.length ? peerTable[i] : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
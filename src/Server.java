@@ -1,8 +1,7 @@
 import java.io.IOException;
 import java.net.ServerSocket;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
@@ -12,8 +11,9 @@ public class Server {
 
     private static final int PORT = 9090;
 
-    private static final List<FileEntry> fileRegistry = Collections.synchronizedList(new ArrayList<>());
-    private static final List<PeerInfo> activePeers = Collections.synchronizedList(new ArrayList<>());
+    // Keyed by content hash (or by file name for peers that share without one)
+    private static final Map<String, FileEntry> fileRegistry = Collections.synchronizedMap(new LinkedHashMap<>());
+    private static final PeerDirectory activePeers = new PeerDirectory();
     private static final AccountService accountService = new AccountService("users.csv");
 
     // Map helps specifically for forced disconnection.
@@ -22,10 +22,21 @@ public class Server {
     public static void main(String[] args) throws IOException {
         System.out.println("Napster-style Server is running on port " + PORT);
         ExecutorService pool = Executors.newCachedThreadPool();
+        ServerMetrics metrics = new ServerMetrics(fileRegistry, activePeers, activeHandlers, accountService, pool);
+
+        // Stats are written behind, so push out whatever is still pending when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                accountService.close();
+                System.out.println("Flushed pending user stats.");
+            } catch (IOException e) {
+                System.err.println("Could not flush user stats on shutdown: " + e.getMessage());
+            }
+        }, "stats-shutdown-flush"));
 
         try (ServerSocket listener = new ServerSocket(PORT)) {
             while (true) {
-                pool.execute(new ClientHandler(listener.accept(), fileRegistry, activePeers, accountService, activeHandlers));
+                pool.execute(new ClientHandler(listener.accept(), fileRegistry, activePeers, accountService, activeHandlers, metrics));
             }
         }
     }
@@ -0,0 +1,12 @@
+import java.io.IOException;
+
+/**
+ Thrown when the server sheds load instead of queueing more work; the client may retry later.
+ */
+class ServerBusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ServerBusyException(String message) {
+        super(message);
+    }
+}
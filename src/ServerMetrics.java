@@ -0,0 +1,112 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ Live counters for the admin METRICS command. Everything on the hot path is a LongAdder
+ or a LatencyHistogram, the snapshot is only assembled when an admin asks for it.
+ */
+public class ServerMetrics {
+
+    private static final String OTHER_COMMAND = "OTHER";
+
+    private final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final long startedAt = System.currentTimeMillis();
+
+    private final Map<String, FileEntry> fileRegistry;
+    private final PeerDirectory activePeers;
+    private final Map<String, ClientHandler> activeHandlers;
+    private final AccountService accountService;
+    private final ExecutorService pool;
+
+    private static class CommandStats {
+        final LongAdder errors = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    public ServerMetrics(Map<String, FileEntry> fileRegistry, PeerDirectory activePeers, Map<String, ClientHandler> activeHandlers,
+                         AccountService accountService, ExecutorService pool) {
+        this.fileRegistry = fileRegistry;
+        this.activePeers = activePeers;
+        this.activeHandlers = activeHandlers;
+        this.accountService = accountService;
+        this.pool = pool;
+        for (String command : new String[]{"FEATURES", "LOGIN", "SIGNUP", "REGISTER", "SHARE", "SEARCH", "LIST_PEERS",
+                "UPDATE_STATS", "STATS_DELTA", "REMOVE_USER", "CHANGE_PASSWORD", "DELETE_ACCOUNT", "METRICS", "RATES", "TOP", "UNREGISTER", OTHER_COMMAND}) {
+            commands.put(command, new CommandStats());
+        }
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    // Unknown actions are folded into OTHER so a misbehaving client cannot grow the map
+    public void recordCommand(String action, long nanos, boolean failed) {
+        CommandStats stats = commands.get(action);
+        if (stats == null) {
+            stats = commands.get(OTHER_COMMAND);
+        }
+        stats.latency.record(nanos);
+        if (failed) {
+            stats.errors.increment();
+        }
+    }
+
+    /**
+     One line of name=value pairs separated by ';'. Latencies are in microseconds.
+     */
+    public String snapshot() {
+        Map<String, String> values = new TreeMap<>();
+        values.put("uptimeSeconds", String.valueOf((System.currentTimeMillis() - startedAt) / 1000));
+        values.put("registry.files", String.valueOf(fileRegistry.size()));
+        values.put("peers.registered", String.valueOf(activePeers.size()));
+        values.put("peers.version", String.valueOf(activePeers.getVersion()));
+        values.put("sessions.loggedIn", String.valueOf(activeHandlers.size()));
+        long opened = connectionsOpened.sum();
+        values.put("connections.opened", String.valueOf(opened));
+        values.put("connections.open", String.valueOf(opened - connectionsClosed.sum()));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        values.put("jvm.threads", String.valueOf(threads.getThreadCount()));
+        values.put("jvm.threadsPeak", String.valueOf(threads.getPeakThreadCount()));
+        Runtime runtime = Runtime.getRuntime();
+        values.put("jvm.heapUsedMb", String.valueOf((runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)));
+        if (pool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+            values.put("pool.size", String.valueOf(executor.getPoolSize()));
+            values.put("pool.active", String.valueOf(executor.getActiveCount()));
+            values.put("pool.largest", String.valueOf(executor.getLargestPoolSize()));
+            values.put("pool.queued", String.valueOf(executor.getQueue().size()));
+            values.put("pool.completed", String.valueOf(executor.getCompletedTaskCount()));
+        }
+
+        values.put("persistence.writes", accountService.getWriteLatency().summary());
+        values.put("persistence.stats", accountService.getStatsWriteSummary());
+        values.put("auth.hash", accountService.getHashingSummary());
+
+        for (Map.Entry<String, CommandStats> entry : commands.entrySet()) {
+            CommandStats stats = entry.getValue();
+            if (stats.latency.getCount() == 0) continue;
+            values.put("cmd." + entry.getKey(), stats.latency.summary() + ",errors:" + stats.errors.sum());
+        }
+
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (line.length() > 0) line.append(";");
+            line.append(entry.getKey()).append("=").append(entry.getValue());
+        }
+        return line.toString();
+    }
+}
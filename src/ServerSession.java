@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ Multiplexes many in-flight requests over the single server connection.
+ Every request line is tagged as "#id COMMAND ..." and the server echoes the tag
+ on its reply, so a single reader thread can hand each response to the right caller.
+ Untagged lines (e.g. FORCE_DISCONNECT) go to the unsolicited listener.
+ On connect the session offers the server compressed replies; a tag ending in 'z'
+ marks a reply that was deflated and is expanded here before it reaches the caller.
+ */
+public class ServerSession implements AutoCloseable {
+
+    private static final long DEFAULT_TIMEOUT_MS = 15000;
+
+    private final Transport transport;
+    private final Map<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final Thread readerThread;
+    private volatile Consumer<String> unsolicitedListener = line -> System.out.println("Server: " + line);
+    private volatile boolean closed;
+
+    public ServerSession(Transport transport) {
+        this.transport = transport;
+        this.readerThread = new Thread(this::readLoop, "server-session-reader");
+        this.readerThread.setDaemon(true);
+        this.readerThread.start();
+        negotiateFeatures();
+    }
+
+    // Older servers answer "ERROR Unknown command" and simply keep sending plain replies
+    private void negotiateFeatures() {
+        request("FEATURES " + ResponseCompression.FEATURE_PEER_TABLE + "," + ResponseCompression.FEATURE_DEFLATE)
+                .thenAccept(reply -> System.out.println("Server features: " + reply));
+    }
+
+    public void setUnsolicitedListener(Consumer<String> listener) {
+        this.unsolicitedListener = listener;
+    }
+
+    /**
+     Sends a command that expects a reply. The returned future completes from the reader thread.
+     */
+    public CompletableFuture<String> request(String command) {
+        long id = nextRequestId.getAndIncrement();
+        CompletableFuture<String> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("Server session is closed"));
+            return future;
+        }
+        pending.put(id, future);
+        // A caller that gives up (requestLine's timeout cancels) must not leave its entry behind
+        future.whenComplete((reply, error) -> pending.remove(id, future));
+        try {
+            write("#" + id + " " + command);
+        } catch (IOException e) {
+            pending.remove(id);
+            future.completeExceptionally(e);
+        }
+        // The reader may have died between the closed check and the put above
+        if (closed && pending.remove(id) != null) {
+            future.completeExceptionally(new IOException("Server session is closed"));
+        }
+        return future;
+    }
+
+    /**
+     Blocking convenience wrapper around {@link #request(String)} for callers that used sendLine/readLine.
+     */
+    public String requestLine(String command) throws IOException {
+        CompletableFuture<String> future = request(command);
+        try {
+            return future.get(DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for server response", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause.getMessage(), cause);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IOException("Timed out waiting for server response to: " + command.split(" ", 2)[0]);
+        }
+    }
+
+    /**
+     Sends a fire-and-forget command (SHARE, REGISTER, STATS_DELTA, UNREGISTER).
+     */
+    public void send(String command) throws IOException {
+        write(command);
+    }
+
+    /**
+     Reports the user's transfers since the last report as a STATS_DELTA. What could not be sent is
+     kept for the next report.
+     */
+    public void sendStatsDelta(User user) throws IOException {
+        String downloadDelta = user.getDownloadStats().drainUnreportedCsv();
+        String uploadDelta = user.getUploadStats().drainUnreportedCsv();
+        if (downloadDelta.equals("0,0") && uploadDelta.equals("0,0")) return;
+        try {
+            send("STATS_DELTA " + downloadDelta + " " + uploadDelta);
+        } catch (IOException e) {
+            user.getDownloadStats().restoreUnreportedCsv(downloadDelta);
+            user.getUploadStats().restoreUnreportedCsv(uploadDelta);
+            throw e;
+        }
+    }
+
+    private synchronized void write(String line) throws IOException {
+        transport.sendLine(line);
+    }
+
+    private void readLoop() {
+        IOException failure = null;
+        try {
+            String line;
+            while ((line = transport.readLine()) != null) {
+                dispatch(line);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            closed = true;
+            IOException cause = failure != null ? failure : new IOException("Server closed the connection");
+            for (Long id : pending.keySet()) {
+                CompletableFuture<String> future = pending.remove(id);
+                if (future != null) {
+                    future.completeExceptionally(cause);
+                }
+            }
+        }
+    }
+
+    private void dispatch(String line) {
+        if (line.startsWith("#")) {
+            int space = line.indexOf(' ');
+            String tag = space == -1 ? line.substring(1) : line.substring(1, space);
+            String body = space == -1 ? "" : line.substring(space + 1);
+            boolean compressed = tag.endsWith("z");
+            if (compressed) {
+                tag = tag.substring(0, tag.length() - 1);
+            }
+            try {
+                CompletableFuture<String> future = pending.remove(Long.parseLong(tag));
+                if (future != null) {
+                    try {
+                        future.complete(compressed ? ResponseCompression.inflate(body) : body);
+                    } catch (IOException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+                return;
+            } catch (NumberFormatException e) {
+                // Not one of our tags, treat it as an unsolicited line
+            }
+        }
+        Consumer<String> listener = unsolicitedListener;
+        if (listener != null) {
+            listener.accept(line);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        transport.close();
+    }
+}
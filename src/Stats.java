@@ -7,4 +7,32 @@ public interface Stats {
     String toCsvString();
     void fromCsvString(String csv);
 
+    // Replaces the totals, as fromCsvString does without going through a string
+    void set(long files, long bytes);
+
+    // Adds a delta reported by a client, already checked by parseDelta, on top of the current totals
+    void addDelta(long files, long bytes);
+
+    // Parses a client's "files,bytes" delta, rejecting anything that is not two non-negative counts
+    static long[] parseDelta(String csv) {
+        String[] parts = csv.split(",");
+        if (parts.length != 2) throw new NumberFormatException("Expected files,bytes but got: " + csv);
+        long files = Long.parseLong(parts[0]);
+        long bytes = Long.parseLong(parts[1]);
+        if (files < 0 || bytes < 0) throw new NumberFormatException("Negative stats delta: " + csv);
+        return new long[]{files, bytes};
+    }
+
+    // "files,bytes" added locally since the previous call
+    String drainUnreportedCsv();
+
+    // Puts back a drained "files,bytes" that could not be sent, so the next report includes it
+    void restoreUnreportedCsv(String csv);
+
+    // Recent bandwidth, updated per chunk on clients and per reported delta on the server
+    ThroughputSeries getThroughput();
+
+    // Null if nothing has been recorded yet
+    ThroughputSeries getThroughputIfRecorded();
+
 }
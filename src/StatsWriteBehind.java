@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ Coalesces stats updates. Callers only mark a user dirty; a background writer persists
+ everything that is dirty once FLUSH_INTERVAL_MS has passed or MAX_DIRTY users are waiting,
+ so a burst of UPDATE_STATS from many transfers turns into a single users.csv rewrite.
+ The dirty users are held by reference until written, so a store that drops users from memory
+ cannot lose an update by reloading an older copy in between.
+ */
+class StatsWriteBehind implements AutoCloseable {
+
+    static final long FLUSH_INTERVAL_MS = 2000;
+    static final int MAX_DIRTY = 256;
+
+    interface Flusher {
+        void flush(List<User> users) throws IOException;
+    }
+
+    private final Flusher flusher;
+    private final Map<String, User> dirty = new ConcurrentHashMap<>();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final Object signal = new Object();
+    private final Object flushLock = new Object();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    StatsWriteBehind(Flusher flusher) {
+        this.flusher = flusher;
+        this.writer = new Thread(this::writeLoop, "stats-write-behind");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    void markDirty(User user) {
+        updates.increment();
+        if (dirty.put(user.getUsername(), user) == null && dirty.size() >= MAX_DIRTY) {
+            synchronized (signal) {
+                signal.notify();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (!closed) {
+            synchronized (signal) {
+                try {
+                    if (dirty.size() < MAX_DIRTY) {
+                        signal.wait(FLUSH_INTERVAL_MS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                System.err.println("Warning: Could not flush user stats, will retry: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     Writes everything that is dirty right now. Users from a failed write are marked dirty again.
+     */
+    void flush() throws IOException {
+        synchronized (flushLock) {
+            if (dirty.isEmpty()) return;
+            List<User> batch = new ArrayList<>(dirty.size());
+            for (String username : new ArrayList<>(dirty.keySet())) {
+                User user = dirty.remove(username);
+                if (user != null) batch.add(user);
+            }
+            try {
+                flusher.flush(batch);
+                flushes.increment();
+            } catch (IOException | RuntimeException e) {
+                for (User user : batch) {
+                    dirty.putIfAbsent(user.getUsername(), user);
+                }
+                throw e;
+            }
+        }
+    }
+
+    // updates:flushes is the coalescing ratio
+    String summary() {
+        return "updates:" + updates.sum() + ",flushes:" + flushes.sum() + ",pending:" + dirty.size();
+    }
+
+    // Not an interrupt: that would close the channel under a write already in progress
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (signal) {
+            signal.notify();
+        }
+        try {
+            writer.join(FLUSH_INTERVAL_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
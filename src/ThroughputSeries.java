@@ -0,0 +1,192 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ Bytes transferred over time for one user and direction, kept at four resolutions:
+ 60 one-second buckets, 60 minutes, 24 hours and 30 days. Each level is a ring indexed by
+ time unit modulo its size, so recording a chunk is four array updates and old buckets are
+ simply overwritten when their slot comes round again.
+ Only the minute, hour and day levels are persisted; the per-second level is live data.
+ */
+public class ThroughputSeries {
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    private final Ring seconds = new Ring(60, SECOND);
+    private final Ring minutes = new Ring(60, MINUTE);
+    private final Ring hours = new Ring(24, HOUR);
+    private final Ring days = new Ring(30, DAY);
+
+    private static class Ring {
+        final long unitMillis;
+        final AtomicLongArray stamps;
+        final AtomicLongArray values;
+
+        Ring(int size, long unitMillis) {
+            this.unitMillis = unitMillis;
+            this.stamps = new AtomicLongArray(size);
+            this.values = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                stamps.set(i, -1);
+            }
+        }
+
+        void add(long nowMillis, long bytes) {
+            long unit = nowMillis / unitMillis;
+            int slot = (int) (unit % stamps.length());
+            if (stamps.get(slot) != unit && !claim(slot, unit)) {
+                return;
+            }
+            values.addAndGet(slot, bytes);
+        }
+
+        // Only taken when a slot moves on to a new unit, at most once per unit
+        private synchronized boolean claim(int slot, long unit) {
+            long current = stamps.get(slot);
+            if (current == unit) return true;
+            if (current > unit) return false;
+            values.set(slot, 0);
+            stamps.set(slot, unit);
+            return true;
+        }
+
+        // Bytes in the last `count` units, the current (partial) one included
+        long sum(long nowMillis, int count) {
+            long newest = nowMillis / unitMillis;
+            long oldest = newest - count + 1;
+            long total = 0;
+            for (int slot = 0; slot < stamps.length(); slot++) {
+                long stamp = stamps.get(slot);
+                if (stamp >= oldest && stamp <= newest) {
+                    total += values.get(slot);
+                }
+            }
+            return total;
+        }
+
+        void writeTo(DataOutputStream out, long nowMillis) throws IOException {
+            long oldest = nowMillis / unitMillis - stamps.length() + 1;
+            int live = 0;
+            for (int slot = 0; slot < stamps.length(); slot++) {
+                if (stamps.get(slot) >= oldest && values.get(slot) != 0) live++;
+            }
+            out.writeShort(live);
+            for (int slot = 0; slot < stamps.length(); slot++) {
+                long stamp = stamps.get(slot);
+                long value = values.get(slot);
+                if (stamp >= oldest && value != 0) {
+                    out.writeInt((int) stamp);
+                    out.writeLong(value);
+                }
+            }
+        }
+
+        void readFrom(DataInputStream in) throws IOException {
+            int live = in.readUnsignedShort();
+            for (int i = 0; i < live; i++) {
+                long stamp = in.readInt() & 0xFFFFFFFFL;
+                long value = in.readLong();
+                add(stamp * unitMillis, value);
+            }
+        }
+    }
+
+    public void record(long bytes) {
+        record(System.currentTimeMillis(), bytes);
+    }
+
+    void record(long nowMillis, long bytes) {
+        if (bytes <= 0) return;
+        seconds.add(nowMillis, bytes);
+        minutes.add(nowMillis, bytes);
+        hours.add(nowMillis, bytes);
+        days.add(nowMillis, bytes);
+    }
+
+    /**
+     Average bytes per second over the last windowSeconds (up to 30 days), read from the finest level that covers it.
+     */
+    public long bytesPerSecond(long windowSeconds) {
+        long now = System.currentTimeMillis();
+        long windowMillis = Math.max(1, windowSeconds) * SECOND;
+        Ring ring = windowMillis <= 60 * SECOND ? seconds
+                : windowMillis <= HOUR ? minutes
+                : windowMillis <= DAY ? hours
+                : days;
+        int units = (int) Math.min(ring.stamps.length(), (windowMillis + ring.unitMillis - 1) / ring.unitMillis);
+        // The newest unit has only partly elapsed, divide by the time actually covered
+        long covered = (units - 1) * ring.unitMillis + (now % ring.unitMillis) + 1;
+        return ring.sum(now, units) * SECOND / covered;
+    }
+
+    /**
+     10s:B,1m:B,1h:B,1d:B in bytes per second
+     */
+    public String summary() {
+        return "10s:" + bytesPerSecond(10)
+                + ",1m:" + bytesPerSecond(60)
+                + ",1h:" + bytesPerSecond(3600)
+                + ",1d:" + bytesPerSecond(86400);
+    }
+
+    /**
+     A summary() string as readable per-second rates, e.g. "10s 1.5 MB/s  1m 800.0 KB/s ..."
+     */
+    public static String formatSummary(String summary) {
+        StringBuilder sb = new StringBuilder();
+        for (String pair : summary.split(",")) {
+            String[] parts = pair.split(":", 2);
+            if (parts.length != 2) continue;
+            if (sb.length() > 0) sb.append("  ");
+            try {
+                sb.append(parts[0]).append(' ').append(formatBytes(Long.parseLong(parts[1]))).append("/s");
+            } catch (NumberFormatException e) {
+                sb.append(pair);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     The download and upload summaries of a "RATES <username> down=... up=..." reply, or null if it is not one
+     */
+    public static String[] parseRatesReply(String response) {
+        String[] parts = response != null ? response.split(" ") : new String[0];
+        if (parts.length == 4 && parts[0].equals("RATES")
+                && parts[2].startsWith("down=") && parts[3].startsWith("up=")) {
+            return new String[]{parts[2].substring(5), parts[3].substring(3)};
+        }
+        return null;
+    }
+
+    private static String formatBytes(long size) {
+        if (size <= 0) return "0 B";
+        final String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int unitIndex = 0;
+        double displaySize = size;
+        while (displaySize >= 1024 && unitIndex < units.length - 1) {
+            displaySize /= 1024;
+            unitIndex++;
+        }
+        return String.format(Locale.US, "%.1f %s", displaySize, units[unitIndex]);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        long now = System.currentTimeMillis();
+        minutes.writeTo(out, now);
+        hours.writeTo(out, now);
+        days.writeTo(out, now);
+    }
+
+    void readFrom(DataInputStream in) throws IOException {
+        minutes.readFrom(in);
+        hours.readFrom(in);
+        days.readFrom(in);
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ throughput.bin: the minute/hour/day history of every user that has transferred something.
+ Layout is a magic number and a user count, then per user the name and a download and an upload
+ series, each written as (unit, bytes) pairs for its non-empty buckets only.
+ With a store that keeps only some users in memory, the history of the others is parked here in its
+ serialized form and handed back when the user is loaded again.
+ */
+class ThroughputStore implements IndexedUserRepository.ResidencyListener {
+
+    private static final int MAGIC = 0x52545053; // "RTPS"
+
+    private final Path path;
+    private final Map<String, byte[]> parked = new ConcurrentHashMap<>();
+
+    ThroughputStore(Path userCsvPath) {
+        Path parentDir = userCsvPath.toAbsolutePath().getParent();
+        this.path = parentDir.resolve("throughput.bin");
+    }
+
+    /**
+     partial is true when users holds only the accounts in memory rather than all of them.
+     */
+    void load(Map<String, User> users, boolean partial) {
+        if (!Files.exists(path)) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                System.err.println("Warning: Ignoring " + path.getFileName() + ", unknown format");
+                return;
+            }
+            int count = in.readInt();
+            // Series of missing users are read either way so the stream stays aligned
+            for (int i = 0; i < count; i++) {
+                String username = in.readUTF();
+                User user = users.get(username);
+                ThroughputSeries download = user != null ? user.getDownloadStats().getThroughput() : new ThroughputSeries();
+                ThroughputSeries upload = user != null ? user.getUploadStats().getThroughput() : new ThroughputSeries();
+                download.readFrom(in);
+                upload.readFrom(in);
+                if (user == null && partial) {
+                    parked.put(username, serialize(download, upload));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Could not load throughput history: " + e.getMessage());
+        }
+    }
+
+    void save(Map<String, User> users) throws IOException {
+        List<User> recorded = new ArrayList<>();
+        for (User user : users.values()) {
+            if (user.getDownloadStats().getThroughputIfRecorded() != null
+                    || user.getUploadStats().getThroughputIfRecorded() != null) {
+                recorded.add(user);
+            }
+        }
+
+        Map<String, byte[]> stillParked = new HashMap<>(parked);
+        stillParked.keySet().removeAll(users.keySet());
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(recorded.size() + stillParked.size());
+            for (User user : recorded) {
+                out.writeUTF(user.getUsername());
+                user.getDownloadStats().getThroughput().writeTo(out);
+                user.getUploadStats().getThroughput().writeTo(out);
+            }
+            for (Map.Entry<String, byte[]> entry : stillParked.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.write(entry.getValue());
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] serialize(ThroughputSeries download, ThroughputSeries upload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            download.writeTo(out);
+            upload.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void loaded(User user) {
+        byte[] history = parked.remove(user.getUsername());
+        if (history == null) return;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(history))) {
+            user.getDownloadStats().getThroughput().readFrom(in);
+            user.getUploadStats().getThroughput().readFrom(in);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not restore throughput history of " + user.getUsername() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void evicted(User user) {
+        ThroughputSeries download = user.getDownloadStats().getThroughputIfRecorded();
+        ThroughputSeries upload = user.getUploadStats().getThroughputIfRecorded();
+        if (download == null && upload == null) return;
+        try {
+            parked.put(user.getUsername(), serialize(user.getDownloadStats().getThroughput(), user.getUploadStats().getThroughput()));
+        } catch (IOException e) {
+            System.err.println("Warning: Could not park throughput history of " + user.getUsername() + ": " + e.getMessage());
+        }
+    }
+
+    // The object's own series is newer than the copy parked when it was evicted
+    @Override
+    public void resumed(User user) {
+        parked.remove(user.getUsername());
+    }
+
+    void forget(String username) {
+        parked.remove(username);
+    }
+}
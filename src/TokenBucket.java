@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ A token bucket refilled at rate bytes per second, where a rate of 0 or less means no limit. The
+ rate is read on every use so it can be changed while transfers run. A bucket may have a parent,
+ and bytes consumed are paid for in it and every ancestor, so per-connection buckets under one
+ global bucket each keep to their own limit and together to the global one.
+
+ A bucket may go into debt: consume takes the bytes at once and the caller sleeps until the most
+ indebted bucket on the path has refilled. Concurrent callers queue up behind each other's debt,
+ which shares a parent's rate among its children.
+ */
+class TokenBucket {
+
+    // Largest burst after an idle spell, in seconds of the rate
+    private static final double BURST_SECONDS = 0.25;
+    // Bounds on what one transfer step asks for, so a limited transfer moves in small, even steps
+    private static final int MIN_QUANTUM = 4 * 1024;
+    private static final int MAX_QUANTUM = 256 * 1024;
+
+    private final TokenBucket parent;
+    private final LongSupplier rate;
+    private double tokens;
+    private long updated = System.nanoTime();
+
+    TokenBucket(TokenBucket parent, LongSupplier bytesPerSecond) {
+        this.parent = parent;
+        this.rate = bytesPerSecond;
+    }
+
+    /**
+     Pays for bytes already moved, sleeping until every bucket on the path could afford them
+     */
+    void consume(long bytes) throws IOException {
+        long waitNanos = 0;
+        for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+            waitNanos = Math.max(waitNanos, bucket.take(bytes));
+        }
+        if (waitNanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    /**
+     How much a transfer step should move at most: about a tenth of a second at the tightest limit on
+     the path, or max when nothing on the path is limited
+     */
+    int quantum(int max) {
+        long quantum = max;
+        for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+            long rate = bucket.rate.getAsLong();
+            if (rate > 0) {
+                quantum = Math.min(quantum, Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, rate / 10)));
+            }
+        }
+        return (int) quantum;
+    }
+
+    // Takes bytes from this bucket alone and returns how long the caller must wait for the debt
+    private synchronized long take(long bytes) {
+        long rate = this.rate.getAsLong();
+        long now = System.nanoTime();
+        if (rate <= 0) {
+            tokens = 0;
+            updated = now;
+            return 0;
+        }
+        double capacity = Math.max(MIN_QUANTUM, rate * BURST_SECONDS);
+        tokens = Math.min(capacity, tokens + (now - updated) * (rate / 1e9));
+        updated = now;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+    }
+}
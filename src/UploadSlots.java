@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ The uploads a peer serves at once. At most `slots` transfers run together and up to `queueCapacity`
+ more wait in arrival order. A waiting request is told its place in line when it joins, whenever it
+ moves up, and at least every NOTIFY_INTERVAL_MS so the downloader's read timeout does not fire; if
+ that notice cannot be delivered the downloader has gone and the place is given up. When the line is
+ full a request is turned away at once so the downloader can go to another source.
+ */
+class UploadSlots {
+
+    static final long NOTIFY_INTERVAL_MS = 10000;
+
+    interface PositionListener {
+        void position(int position) throws IOException;
+    }
+
+    private final int slots;
+    private final int queueCapacity;
+    private final Deque<Object> waiting = new ArrayDeque<>();
+    private int running;
+
+    UploadSlots(int slots, int queueCapacity) {
+        this.slots = Math.max(1, slots);
+        this.queueCapacity = Math.max(0, queueCapacity);
+    }
+
+    /**
+     Takes a slot, waiting in line if all are in use. Returns false without waiting when the line is
+     full; after true the caller must release().
+     */
+    boolean acquire(PositionListener listener) throws IOException, InterruptedException {
+        Object ticket = new Object();
+        synchronized (this) {
+            if (running < slots && waiting.isEmpty()) {
+                running++;
+                return true;
+            }
+            if (waiting.size() >= queueCapacity) {
+                return false;
+            }
+            waiting.addLast(ticket);
+        }
+
+        boolean acquired = false;
+        try {
+            int lastPosition = 0;
+            long lastNotice = 0;
+            while (true) {
+                int position;
+                synchronized (this) {
+                    while (true) {
+                        if (waiting.peekFirst() == ticket && running < slots) {
+                            waiting.removeFirst();
+                            running++;
+                            acquired = true;
+                            return true;
+                        }
+                        position = positionOf(ticket);
+                        long sinceNotice = System.currentTimeMillis() - lastNotice;
+                        if (position != lastPosition || sinceNotice >= NOTIFY_INTERVAL_MS) break;
+                        wait(NOTIFY_INTERVAL_MS - sinceNotice);
+                    }
+                }
+                listener.position(position);
+                lastPosition = position;
+                lastNotice = System.currentTimeMillis();
+            }
+        } finally {
+            if (!acquired) {
+                synchronized (this) {
+                    waiting.remove(ticket);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    synchronized void release() {
+        running--;
+        notifyAll();
+    }
+
+    synchronized int running() {
+        return running;
+    }
+
+    synchronized int waiting() {
+        return waiting.size();
+    }
+
+    private int positionOf(Object ticket) {
+        int position = 1;
+        for (Object other : waiting) {
+            if (other == ticket) return position;
+            position++;
+        }
+        return position;
+    }
+}
@@ -1,32 +1,43 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ Upload side of a user's totals, built the same way as DownloadStats.
+ */
 public class UploadStats implements Stats{
-    private long uploadedFiles;
-    private long uploadedBytes;
+    private final LongAdder uploadedFiles = new LongAdder();
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final LongAdder unreportedFiles = new LongAdder();
+    private final LongAdder unreportedBytes = new LongAdder();
+    // Created on first use, most accounts never transfer anything while the server is up
+    private volatile ThroughputSeries throughput;
 
 
     @Override
     public void addFile() {
-        uploadedFiles++;
+        uploadedFiles.increment();
+        unreportedFiles.increment();
     }
 
     @Override
     public void addBytes(long bytes) {
-        uploadedBytes += bytes;
+        uploadedBytes.add(bytes);
+        unreportedBytes.add(bytes);
     }
 
     @Override
     public long getFileCount() {
-        return uploadedFiles;
+        return uploadedFiles.sum();
     }
 
 
     @Override
     public long  getTotalBytes(){
-        return uploadedBytes;
+        return uploadedBytes.sum();
     }
 
     @Override
     public String toCsvString(){
-        return uploadedFiles + "," + uploadedBytes;
+        return uploadedFiles.sum() + "," + uploadedBytes.sum();
     }
 
     @Override
@@ -34,9 +45,52 @@ public class UploadStats implements Stats{
         if(csv == null || csv.isEmpty()) return;
         String[] parts = csv.split(",");
         if(parts.length == 2){
-            this.uploadedFiles = Long.parseLong(parts[0]);
-            this.uploadedBytes = Long.parseLong(parts[1]);
+            set(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        }
+    }
+
+    @Override
+    public void set(long files, long bytes){
+        uploadedFiles.reset();
+        uploadedFiles.add(files);
+        uploadedBytes.reset();
+        uploadedBytes.add(bytes);
+    }
+
+    @Override
+    public void addDelta(long files, long bytes){
+        uploadedFiles.add(files);
+        uploadedBytes.add(bytes);
+        if(bytes > 0) getThroughput().record(bytes);
+    }
+
+    @Override
+    public String drainUnreportedCsv(){
+        return unreportedFiles.sumThenReset() + "," + unreportedBytes.sumThenReset();
+    }
+
+    @Override
+    public void restoreUnreportedCsv(String csv){
+        long[] delta = Stats.parseDelta(csv);
+        unreportedFiles.add(delta[0]);
+        unreportedBytes.add(delta[1]);
+    }
+
+    @Override
+    public ThroughputSeries getThroughput(){
+        ThroughputSeries series = throughput;
+        if(series == null){
+            synchronized (this){
+                if(throughput == null) throughput = new ThroughputSeries();
+                series = throughput;
+            }
         }
+        return series;
+    }
+
+    @Override
+    public ThroughputSeries getThroughputIfRecorded(){
+        return throughput;
     }
 
 
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ Reads users.csv straight from a mapped file. Fields are located by byte offset and the stats are
+ parsed from the bytes in place, so a row costs its two strings and the User, nothing per field.
+ Files over PARALLEL_THRESHOLD are cut into one chunk per core at line boundaries and the chunks are
+ parsed in parallel; results are merged in file order so a later row still wins over an earlier one.
+
+ Rows are either username,hash,sharedDir,df,db,uf,ub (7 or more fields) or the older
+ username,hash[,df,db[,uf,ub]]. The first line is the header.
+ */
+class UserCsvParser {
+
+    static final long PARALLEL_THRESHOLD = 8 * 1024 * 1024;
+    private static final long MAX_CHUNK = 1L << 30;
+    private static final int MAX_FIELDS = 8;
+
+    private UserCsvParser() {
+    }
+
+    static List<User> parse(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = skipLine(channel, 0, size);
+            if (start >= size) return new ArrayList<>();
+
+            int chunks = size < PARALLEL_THRESHOLD ? 1
+                    : (int) Math.max(Runtime.getRuntime().availableProcessors(), (size + MAX_CHUNK - 1) / MAX_CHUNK);
+            long[] bounds = new long[chunks + 1];
+            bounds[0] = start;
+            bounds[chunks] = size;
+            for (int i = 1; i < chunks; i++) {
+                long nominal = Math.max(bounds[i - 1], start + (size - start) * i / chunks);
+                bounds[i] = nominal == start ? start : skipLine(channel, nominal - 1, size);
+            }
+
+            if (chunks == 1) {
+                return parseChunk(channel, bounds[0], bounds[1]);
+            }
+            try {
+                List<List<User>> parts = IntStream.range(0, chunks).parallel()
+                        .mapToObj(i -> {
+                            try {
+                                return parseChunk(channel, bounds[i], bounds[i + 1]);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        })
+                        .collect(Collectors.toList());
+                List<User> users = new ArrayList<>();
+                for (List<User> part : parts) {
+                    users.addAll(part);
+                }
+                return users;
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    // Position just past the next '\n' at or after from, or size
+    private static long skipLine(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') return position + i + 1;
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static List<User> parseChunk(FileChannel channel, long from, long to) throws IOException {
+        List<User> users = new ArrayList<>();
+        if (to <= from) return users;
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        int limit = data.limit();
+        int[] starts = new int[MAX_FIELDS];
+        int[] ends = new int[MAX_FIELDS];
+        byte[] scratch = new byte[256];
+
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            int fields = 0;
+            starts[0] = lineStart;
+            byte b = 0;
+            while (lineEnd < limit && (b = data.get(lineEnd)) != '\n') {
+                if (b == ',' && fields < MAX_FIELDS - 1) {
+                    ends[fields++] = lineEnd;
+                    starts[fields] = lineEnd + 1;
+                }
+                lineEnd++;
+            }
+            int contentEnd = lineEnd > lineStart && data.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            ends[fields++] = contentEnd;
+            // split(",") used to drop trailing empty fields, keep counting the same way
+            while (fields > 0 && ends[fields - 1] == starts[fields - 1]) fields--;
+
+            if (fields >= 2) {
+                scratch = fit(scratch, ends[0] - starts[0], ends[1] - starts[1]);
+                String username = string(data, starts[0], ends[0], scratch);
+                String passwordHash = string(data, starts[1], ends[1], scratch);
+                User user = new RegularUser(username, passwordHash);
+                // The newer format has the shared directory column in front of the stats
+                int first = fields >= 7 ? 3 : 2;
+                if (fields >= first + 2 && !setStats(user.getDownloadStats(), data, starts, ends, first)) {
+                    System.err.println("Warning: Invalid download stats for user " + username + ", using defaults");
+                }
+                if (fields >= first + 4 && !setStats(user.getUploadStats(), data, starts, ends, first + 2)) {
+                    System.err.println("Warning: Invalid upload stats for user " + username + ", using defaults");
+                }
+                users.add(user);
+            } else if (contentEnd > lineStart) {
+                scratch = fit(scratch, contentEnd - lineStart, 0);
+                System.err.println("Warning: Corrupt line in user CSV file, skipping: " + string(data, lineStart, contentEnd, scratch));
+            }
+            lineStart = lineEnd + 1;
+        }
+        return users;
+    }
+
+    private static byte[] fit(byte[] scratch, int a, int b) {
+        int needed = Math.max(a, b);
+        return needed <= scratch.length ? scratch : new byte[Math.max(needed, scratch.length * 2)];
+    }
+
+    private static String string(MappedByteBuffer data, int from, int to, byte[] scratch) {
+        int length = to - from;
+        for (int i = 0; i < length; i++) {
+            scratch[i] = data.get(from + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static boolean setStats(Stats stats, MappedByteBuffer data, int[] starts, int[] ends, int field) {
+        long files = parseLong(data, starts[field], ends[field]);
+        long bytes = parseLong(data, starts[field + 1], ends[field + 1]);
+        if (files < 0 || bytes < 0) return false;
+        stats.set(files, bytes);
+        return true;
+    }
+
+    // Non-negative decimal, -1 if the field is empty, not a number or overflows
+    private static long parseLong(MappedByteBuffer data, int from, int to) {
+        if (from < to && data.get(from) == '+') from++;
+        if (from >= to) return -1;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = data.get(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
@@ -1,9 +1,34 @@
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
+/**
+ The map returned by getUsers() is authoritative once loadUsers() has run at startup.
+ Changes go through addUser/updateUser/removeUser so the store can persist them.
+ */
 interface UserRepository {
     void loadUsers();
     void saveUsers() throws IOException;
     void saveUserStats(User user) throws IOException;
+
+    // Stores that rewrite everything anyway can persist a whole batch in one go
+    default void saveUserStats(List<User> users) throws IOException {
+        for (User user : users) {
+            saveUserStats(user);
+        }
+    }
+
     Map<String, User> getUsers();
+
+    User findUser(String username);
+
+    // False if the username is already taken
+    boolean addUser(User user) throws IOException;
+
+    void updateUser(User user) throws IOException;
+
+    boolean removeUser(String username) throws IOException;
+
+    default void close() throws IOException {
+    }
 }
\ No newline at end of file